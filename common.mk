@@ -18,6 +18,34 @@ SOURCES = \
     $(JSRC)/SetScheduleIterator.java \
     $(JSRC)/QueueScheduleIterator.java \
     $(JSRC)/PQScheduleIterator.java \
+    $(JSRC)/ScheduleIterator.java \
+    $(JSRC)/SeekableScheduleIterator.java \
+    $(JSRC)/StratifiedScheduleIterator.java \
+    $(JSRC)/ScheduleSpliterator.java \
+    $(JSRC)/ParallelScheduleIterator.java \
+    $(JSRC)/ScheduleIndex.java \
+    $(JSRC)/SelectedScheduleIterator.java \
+    $(JSRC)/LPTScheduleIterator.java \
+    $(JSRC)/CostModel.java \
+    $(JSRC)/Planner.java \
+    $(JSRC)/Checkpoint.java \
+    $(JSRC)/ShardSummary.java \
+    $(JSRC)/ResultCache.java \
+    $(JSRC)/ResultLog.java \
+    $(JSRC)/ScheduleExecutor.java \
+    $(JSRC)/ThreadExecutor.java \
+    $(JSRC)/ForkJoinExecutor.java \
+    $(JSRC)/ScheduleDispenser.java \
+    $(JSRC)/Watchdog.java \
+    $(JSRC)/Governor.java \
+    $(JSRC)/Campaign.java \
+    $(JSRC)/Server.java \
+    $(JSRC)/Verification.java \
+    $(JSRC)/ScheduleResult.java \
+    $(JSRC)/Coordinator.java \
+    $(JSRC)/ChildJVM.java \
+    $(JSRC)/MetricsLog.java \
+    $(JSRC)/Log.java \
     $(JSRC)/AVUtil.java
 COLLECT=$(ROOT)/bin/$(COLLECT_BIN)
 UTIL = $(ROOT)/src/util
@@ -1,24 +1,83 @@
 package av;
 import dev.civl.mc.run.IF.UserInterface;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import static av.Schedule.DSKind;
 import static av.Schedule.DSKind.*;
+import static av.Log.Level;
 import static av.Step.Op;
 import static av.Step.Op.*;
+import static av.Watchdog.Outcome;
+import static av.ScheduleResult.Verdict;
 
 public class AMPVer {
 
-  public final static PrintStream out = System.out;
+  /** Where the results of this run are printed: standard output, or
+   * the output file of a run of a campaign (see Campaign), or the
+   * client of a job of a daemon (see Server) */
+  final PrintStream out;
+
+  /** Where errors are printed: standard error, or the client of a
+   * job of a daemon */
+  final PrintStream errOut;
+
+  /** The directory against which relative file names on the command
+   * line are resolved, or null for the working directory: the
+   * working directory of the client of a job of a daemon */
+  private final File baseDir;
+
+  /** If true, an error in the command line (see err) exits collect;
+   * if false, it throws an IllegalArgumentException, which ends only
+   * this run (a job of a daemon). */
+  boolean exitOnError = true;
+
+  /** The name of this run in a campaign (see Campaign), or null */
+  String runName = null;
+
+  /** The campaign file, if this run is a campaign of runs, else
+   * null.  Set on command line by -campaign=FILE. */
+  private File campaign = null;
+
+  /** The socket on which to serve jobs as a daemon (see Server), or
+   * null.  Set on command line by -serve=SOCKET. */
+  private File serve = null;
+
+  /** The port on which to coordinate workers that run CIVL (see
+   * Coordinator), or -1 to run it here.  Set on command line by
+   * -coordinate=[HOST:]PORT. */
+  private int coordinate = -1;
+
+  /** The address on which to coordinate workers, or null for the
+   * loopback address.  Set on command line by -coordinate=HOST:PORT. */
+  private String coordinateHost = null;
+
+  /** The coordinator, HOST:PORT, for which to work (see Coordinator),
+   * or null.  Set on command line by -worker=HOST:PORT. */
+  private String worker = null;
+
+  /** Hands the runs of CIVL to the workers, if coordinate >= 0 */
+  private Coordinator coordinator = null;
 
   public static enum Property {
     SC, // sequential consistency
@@ -32,8 +91,8 @@ public class AMPVer {
   /**
    * Path to the directory containing subdirectories named include and
    * src with auxiliary verification files.  Set on command line by
-   * -root=/path/to/models.  Default: working directory.  */
-  private File rootDir = new File(System.getProperty("user.dir"));
+   * -root=/path/to/models.  Default: working directory (see baseDir).  */
+  private File rootDir;
 
   /** The directory used to make schedule files. */
   private File tmpDir = null;
@@ -41,6 +100,11 @@ public class AMPVer {
   /** The core commands that will be used for every schedule */
   private ArrayList<String> coreCommands = new ArrayList<>();
 
+  /** The core commands with which a schedule that fails in quiet
+   * mode is verified again: without -DQUIET, and showing the
+   * transitions of CIVL */
+  private ArrayList<String> replayCommands = new ArrayList<>();
+
   /** Input files. */
   private ArrayList<String> filenames = new ArrayList<>();
 
@@ -107,6 +171,41 @@ public class AMPVer {
       after it has been verified unless it fails. */
   private boolean tidy = false;
 
+  /** If true, keep the schedule file and CIVL output of each schedule
+   * in memory and write them to tmpDir only if the schedule fails.
+   * CIVL reads its input from a file, so each verification thread
+   * reuses one slot file (slot_N.cvl) for all of its schedules.  Set
+   * on command line by -inMemory.  Default: false. */
+  private boolean inMemory = false;
+
+  /** If true, verify with -DQUIET, so the driver prints nothing
+   * unless it fails, and discard the output of CIVL on success; a
+   * schedule that fails is verified again with full output (see
+   * replayCommands).  Implies inMemory.  Set on command line by
+   * -quiet.  Default: false. */
+  private boolean quiet = false;
+
+  /** If true, keep the schedule, verdict and CIVL output of each
+   * schedule in one compressed, indexed log in tmpDir (see
+   * ResultLog) instead of a schedule file and an output file for
+   * each.  Implies inMemory.  Set on command line by -resultLog.
+   * Default: false. */
+  private boolean resultLog = false;
+
+  /** The result log, if resultLog, else null */
+  private ResultLog results = null;
+
+  /** Given the result of each schedule, or null: the publisher of a
+   * Verification */
+  Consumer<ScheduleResult> listener = null;
+
+  /** Number of slot files created */
+  private AtomicInteger nslot = new AtomicInteger(0);
+
+  /** The slot file of each verification thread (see inMemory) */
+  private ThreadLocal<File> slotFile = ThreadLocal.withInitial
+    (() -> new File(tmpDir, "slot_"+nslot.getAndIncrement()+".cvl"));
+
   /** By default, the hash function is the identity.  For nondeterministic
    * hashing, choose ND. */
   private boolean hashND = false;
@@ -149,19 +248,238 @@ public class AMPVer {
   /** Number of Java threads to use */
   private int ncore = 4;
 
+  /** How schedules are distributed to the ncore verification
+   * threads: "threads" (each worker thread generates, writes, and
+   * verifies its own schedules) or "forkjoin" (generation, file
+   * emission, and verification are separate stages; verification
+   * tasks run in a work-stealing pool).  Set on command line by
+   * -executor=threads|forkjoin. Default: threads. */
+  private String executorKind = "threads";
+
+  /** The order in which schedules are verified: natural (the order
+   * of the schedule iterator) or lpt (most expensive first, see
+   * LPTScheduleIterator).  Set on command line by
+   * -order=natural|lpt.  Default: natural. */
+  private String order = "natural";
+
+  /** Number of Java threads generating schedules.  If greater than
+   * 1, the strata of the schedule iterator are generated in parallel
+   * (the order of the schedules is unchanged).  Set on command line
+   * by -genThreads=INT.  Default: 1. */
+  private int genThreads = 1;
+
+  /** Number of schedules verified by each run of CIVL.  If greater
+   * than 1, consecutive schedules are combined into one translation
+   * unit (see writeMakeBatch), so the driver, oracle, and
+   * implementation are parsed once per batch.  Set on command line
+   * by -batch=INT.  Default: 1. */
+  private int batch = 1;
+
+  /** Number of failing schedules after which the run stops.  Set on
+   * command line by -maxFailures=INT.  Default: 1. */
+  private int maxFailures = 1;
+
+  /** IDs of the schedules on which an error was detected */
+  private TreeSet<Integer> failures = new TreeSet<>();
+
+  /** Budget of wall-clock time (seconds) for verifying one schedule,
+   * or 0 for none.  Set on command line by -timeout=INT.  Default:
+   * 0. */
+  private int timeout = 0;
+
+  /** Budget of memory (MB) for verifying one schedule, or 0 for
+   * none: the heap of the child JVMs, so it requires childJVM.  Set
+   * on command line by -memout=INT.  Default: 0. */
+  private int memout = 0;
+
+  /** If true, run CIVL in long-lived child JVMs (see ChildJVM), one
+   * for each verification thread, instead of in this JVM.  Set on
+   * command line by -childJVM.  Default: false. */
+  private boolean childJVM = false;
+
+  /** Number of schedules after which a child JVM is replaced.  Set
+   * on command line by -childRecycle=INT.  Default: 100. */
+  private int childRecycle = 100;
+
+  /** Maximum heap (MB) of a child JVM, or 0 for the default of the
+   * JVM.  Set on command line by -childHeap=INT.  Default: 0. */
+  private int childHeap = 0;
+
+  /** The child JVM of each verification thread */
+  private ThreadLocal<ChildJVM> child = new ThreadLocal<>();
+
+  /** All child JVMs started, so they can be closed at the end */
+  private ArrayList<ChildJVM> children = new ArrayList<>();
+
+  /** Enforces timeout (see Watchdog) */
+  private Watchdog watchdog = null;
+
+  /** If true, adjust the number of runs of CIVL in progress at once
+   * to the heap and throughput (see Governor), up to ncore.  Set on
+   * command line by -adaptive.  Default: false. */
+  private boolean adaptive = false;
+
+  /** Limits the runs of CIVL in progress at once if adaptive, else
+   * null */
+  private Governor governor = null;
+
+  /** The schedules that exceeded their budgets, with the outcome
+   * (TIMEOUT or MEMOUT), keyed by ID */
+  private TreeMap<Integer,Outcome> exceeded = new TreeMap<>();
+
+  /** Set when the run is cancelled because maxFailures schedules have
+   * failed, or by cancel.  The workers then stop taking schedules and
+   * the schedules in progress are completed. */
+  private volatile boolean cancelled = false;
+
+  /** If true, resume the run recorded in the checkpoint file in
+   * tmpDir, skipping the schedules already verified. */
+  private boolean resume = false;
+
+  /** The IDs of the schedules to verify, in increasing order, or
+   * null to verify all schedules.  Set on command line by
+   * -schedules=ID,LO..HI,... */
+  private int[] selected = null;
+
+  /** The value of the -schedules option, or null */
+  private String selectedStr = null;
+
+  /** Index of the shard of the schedules to verify, from 0, and the
+   * number of shards.  Set on command line by -shard=i/n.  Default:
+   * 0/1, i.e., all schedules. */
+  private int shard = 0, nshard = 1;
+
+  /** ID of the first schedule of the shard */
+  private int firstId = 0;
+
+  /** One more than the ID of the last schedule of the shard */
+  private int endId = Integer.MAX_VALUE;
+
+  /** If true, combine the summaries of the shards in the directories
+   * named on the command line instead of verifying.  Set on command
+   * line by -merge. */
+  private boolean merge = false;
+
   /** Iterator over schedules. */
-  private Iterator<Schedule> schedIter = null;
+  private ScheduleIterator schedIter = null;
+
+  /** Iterator over all schedules, in natural order */
+  private StratifiedScheduleIterator naturalIter = null;
+
+  /** The iterator over the schedules of this run (naturalIter, or the
+   * selected schedules) that is positioned at the start of the shard
+   * or at the checkpoint.  schedIter is it, or produces its schedules
+   * in another order (-order=lpt) or in parallel (-genThreads). */
+  private SeekableScheduleIterator seekIter = null;
+
+  /** Record of the progress of this run, written to tmpDir, or null
+   * if the schedules are not verified in natural order. */
+  private Checkpoint checkpoint = null;
+
+  /** Directory of the persistent result cache, or null if results
+   * are not cached.  Set on command line by -cacheDir=DIR. */
+  private File cacheDir = null;
+
+  /** The persistent result cache, or null if not used. */
+  private ResultCache cache = null;
+
+  /** File to which a record of each schedule is written (see
+   * MetricsLog), or null for none.  Set on command line by
+   * -metrics=FILE. */
+  private File metricsFile = null;
+
+  /** The metrics log, or null if not used. */
+  private MetricsLog metrics = null;
+
+  /** Number of schedules whose result was found in the cache. */
+  private AtomicInteger ncached = new AtomicInteger(0);
+
+  /** If true, print the number of schedules and exit instead of
+   * verifying.  Set on command line by -count. */
+  private boolean count = false;
+
+  /** ID of the schedule whose result is printed from the result log
+   * in tmpDir, instead of verifying, or -1.  Set on command line by
+   * -show=ID. */
+  private int show = -1;
+
+  /** Number of schedules this run verifies (all of them, or those
+   * selected by -schedules or -shard), computed from a ScheduleIndex
+   * without enumerating them. */
+  private long total = 0;
+
+  /** If true, verify a sample of the schedules and predict the time
+   * and memory needed to verify them all (see Planner).  Set on
+   * command line by -plan. */
+  private boolean plan = false;
+
+  /** Number of schedules sampled from each number of threads, steps
+   * and pre-adds.  Set on command line by -samples=INT.  Default:
+   * 5. */
+  private int samples = 5;
+
+  /** Budget of time (seconds) for which -plan recommends bounds, or
+   * 0 for none.  Set on command line by -budget=INT.  Default: 0. */
+  private int budget = 0;
+
+  /** The planner, if plan */
+  private Planner planner = null;
+
+  /** Number of schedules verified (or found in the cache, or
+   * stopped) so far, including those verified by the run resumed */
+  private AtomicLong ncompleted = new AtomicLong(0);
+
+  /** Value of ncompleted at the start of this run */
+  private long ncompleted0 = 0;
+
+  /** Minimum time (seconds) between progress reports, or 0 for
+   * none.  Set on command line by -progress=INT.  Default: 10. */
+  private int progress = 10;
+
+  /** Time (nanoseconds) of the last progress report. */
+  private final AtomicLong progressTime = new AtomicLong(0);
 
   /**  Schedule ID for next schedule */
-  private int sid = 0;
+  private AtomicInteger sid = new AtomicInteger(0);
+
+  /** Held while schedules are generated (see nextSchedules) or the
+   * schedule iterator is read, apart from the lock on this, so that
+   * the threads completing schedules do not wait for generation.
+   * The checkpoint is guarded by its own lock, taken after this one. */
+  private final Object generation = new Object();
+
+  /** Minimum time (nanoseconds) between writes of the checkpoint
+   * file.  The checkpoint in memory is always current. */
+  private final static long CHECKPOINT_INTERVAL = 1000000000L;
+
+  /** Time (nanoseconds) of the last write of the checkpoint file. */
+  private final AtomicLong checkpointTime = new AtomicLong(0);
 
   // Methods...
 
   private void err(String msg) {
-    System.err.println(msg);
-    System.err.flush();
-    out.flush();
-    printUsage(System.err);
+    if (runName != null)
+      msg = runName+": "+msg;
+    if (!exitOnError)
+      throw new IllegalArgumentException(msg);
+    errOut.println(msg);
+    errOut.flush();
+    Log.flush();
+    printUsage(errOut);
+    System.exit(1);
+  }
+
+  /**
+   * Ends the run on e, an error such as a full disk: exits with status
+   * 1, or, if not exitOnError (a job of a daemon, or a Verification),
+   * throws e as an UncheckedIOException, which ends only this run.
+   */
+  private void fail(IOException e) {
+    if (!exitOnError)
+      throw new UncheckedIOException(e);
+    errOut.println(e);
+    errOut.flush();
+    Log.flush();
     System.exit(1);
   }
 
@@ -197,6 +515,8 @@ public class AMPVer {
       // since SC and LINEAR share a common driver.
       // QUIESCENT uses a different driver
     }
+    if (quiet)
+      coreCommands.add("-DQUIET");
     coreCommands.add("-userIncludePath="+includeDir);
     if (hashND) {
       coreCommands.add("-DHASH_ND");
@@ -213,6 +533,11 @@ public class AMPVer {
     coreCommands.add(scheduleSrc.toString());
     coreCommands.add(tidSrc.toString());
     coreCommands.addAll(filenames);
+    if (quiet) {
+      replayCommands.addAll(coreCommands);
+      replayCommands.remove("-DQUIET");
+      replayCommands.add(1, "-showTransitions");
+    }
   }
 
   private int nat(String key, String value) {
@@ -266,7 +591,7 @@ public class AMPVer {
     throw new RuntimeException("unreachable");
   }
 
-  private void printUsage(PrintStream out) {
+  void printUsage(PrintStream out) {
     out.println("collect: the Concurrent Collection Verifier");
     out.println("See https://collect-verifier.org");
     out.println("Usage: collect <options> file ...");
@@ -301,6 +626,15 @@ public class AMPVer {
     out.println("    generate CIVL schedules but don't run them, default false");
     out.println("  -tidy=(true|false)");
     out.println("    erase schedule and output files when done, default false");
+    out.println("  -inMemory=(true|false)");
+    out.println("    write schedule and output files only on failure, default false");
+    out.println("  -resultLog=(true|false)");
+    out.println("    keep schedules, verdicts and output in one compressed, indexed log in");
+    out.println("    tmpDir instead of files (implies -inMemory), default false");
+    out.println("  -quiet=(true|false)");
+    out.println("    compile out the driver's reports and discard CIVL output on success;");
+    out.println("    verify failing schedules again with full output (implies -inMemory),");
+    out.println("    default false");
     out.println("  -hashKind=(nd|ident)");
     out.println("    nondeterministic or identity hash function? default ident");
     out.println("  -hashDomainBound=INT");
@@ -311,8 +645,80 @@ public class AMPVer {
     out.println("    assume weak fairness, default false");
     out.println("  -ncore=INT");
     out.println("    number of verification threads to use, default 4");
+    out.println("  -executor=(threads|forkjoin)");
+    out.println("    how verification threads get schedules, default threads");
+    out.println("  -batch=INT");
+    out.println("    number of schedules verified by each run of CIVL, default 1");
+    out.println("  -order=(natural|lpt)");
+    out.println("    verify schedules in natural order or most expensive first, default natural");
+    out.println("  -genThreads=INT");
+    out.println("    number of threads generating schedules, default 1");
+    out.println("  -schedules=RANGE,...");
+    out.println("    verify only the schedules with these IDs, default all");
+    out.println("  -shard=INT/INT");
+    out.println("    -shard=i/n verifies shard i of n of the schedules, default 0/1");
+    out.println("  -merge");
+    out.println("    instead of verifying, combine the results of the shards whose");
+    out.println("    tmpDirs are named in place of the files, default false");
+    out.println("  -maxFailures=INT");
+    out.println("    stop after this many schedules fail, default 1");
+    out.println("  -childJVM=(true|false)");
+    out.println("    run CIVL in child JVMs instead of this one, default false");
+    out.println("  -childRecycle=INT");
+    out.println("    replace a child JVM after this many schedules, default 100");
+    out.println("  -childHeap=INT");
+    out.println("    max heap (MB) of a child JVM, default: JVM default");
+    out.println("  -adaptive=(true|false)");
+    out.println("    adjust the number of schedules verified at once, up to ncore, to the");
+    out.println("    heap, GC time and throughput; retry those out of memory, default false");
+    out.println("  -timeout=INT");
+    out.println("    seconds allowed to verify one schedule, default 0 (no limit)");
+    out.println("  -memout=INT");
+    out.println("    MB of heap allowed to verify one schedule, as the heap of the child");
+    out.println("    JVMs: requires -childJVM, default 0 (no limit)");
     out.println("  -capacity=INT");
     out.println("    max capacity for bounded collections, default: not specified");
+    out.println("  -resume=(true|false)");
+    out.println("    resume the run checkpointed in tmpDir, default false");
+    out.println("  -cacheDir=DIR");
+    out.println("    skip schedules verified by earlier runs with same inputs");
+    out.println("  -count");
+    out.println("    print the number of schedules and exit, default false");
+    out.println("  -campaign=FILE");
+    out.println("    run each target in FILE with each of its configs in this JVM, writing");
+    out.println("    tmpDir/TARGET_CONFIG.out (see Campaign), default none");
+    out.println("  -serve=SOCKET");
+    out.println("    run as a daemon verifying the jobs of clients on the Unix-domain");
+    out.println("    socket SOCKET, sharing ncore cores among them (see Server)");
+    out.println("  -connect=SOCKET");
+    out.println("    send this command line to the daemon on SOCKET as a job, printing");
+    out.println("    its output and exiting with its exit status");
+    out.println("  -coordinate=[HOST:]PORT");
+    out.println("    run CIVL on the workers that connect to PORT, as each is free; ncore");
+    out.println("    schedules are in progress at once (see Coordinator), default none.");
+    out.println("    Listens on address HOST only (default the loopback address); workers");
+    out.println("    on other hosts need HOST to be an address of this host reachable by");
+    out.println("    them, e.g., its name, or 0.0.0.0 for all of its addresses");
+    out.println("  -worker=HOST:PORT");
+    out.println("    run CIVL for the coordinator at HOST:PORT on ncore threads, until");
+    out.println("    its run ends");
+    out.println("  -show=ID");
+    out.println("    print the schedule, verdict and CIVL output of schedule ID from the");
+    out.println("    result log in tmpDir and exit");
+    out.println("  -plan");
+    out.println("    verify a sample of the schedules and predict the time and memory");
+    out.println("    needed to verify them all, default false");
+    out.println("  -samples=INT");
+    out.println("    schedules sampled per nthread, nstep, npreAdd by -plan, default 5");
+    out.println("  -budget=INT");
+    out.println("    seconds: -plan recommends the largest bounds that fit, default none");
+    out.println("  -progress=INT");
+    out.println("    seconds between progress reports, default 10 (0 for none)");
+    out.println("  -verbosity=(result|progress|info|trace)");
+    out.println("    print errors and the verdict only, and progress reports, and a line");
+    out.println("    for each schedule, and its steps, default progress");
+    out.println("  -metrics=FILE");
+    out.println("    write a JSON record of the cost of each schedule to FILE");
     out.println("  -root=DIR");
     out.println("    specifies root directory of COLLECT distribution");
     out.println("  -checkMemoryLeak=(true|false)");
@@ -322,6 +728,16 @@ public class AMPVer {
     out.println("Notes:");
     out.println("  - a RANGE is either an int or int..int");
     out.println("  - if a Boolean value is not specified, it is same as specifying true");
+    out.println("  - exit status is 0 if all tests pass, 2 if an error is detected, and");
+    out.println("    3 if no error is detected but some schedules exceed their budgets");
+    out.println("    or the run is cancelled");
+  }
+
+  /** Returns the file with the given name, resolved against baseDir
+   * if it is relative. */
+  private File file(String name) {
+    File f = new File(name);
+    return baseDir == null || f.isAbsolute() ? f : new File(baseDir, name);
   }
 
   /**
@@ -329,12 +745,12 @@ public class AMPVer {
    * or an option, which starts with the character '-'.  An option
    * has the form -X or -X=Y.  The form -X is equivalent to -X=true.
    */
-  private void parseCommandLine(String[] args) throws IOException {
+  void parseCommandLine(String[] args) throws IOException {
     int n = args.length;
     for (int i=0; i<n; i++) {
       String arg = args[i];
       if (!arg.startsWith("-")) {
-        filenames.add(arg);
+        filenames.add(file(arg).getPath());
         continue;
       }
       String key, value;
@@ -348,10 +764,10 @@ public class AMPVer {
       }
       switch (key) {
       case "root":
-        rootDir = new File(value);
+        rootDir = file(value);
         break;
       case "tmpDir":
-        tmpDir = new File(value);
+        tmpDir = file(value);
         break;
       case "kind":
         switch (value) {
@@ -405,6 +821,15 @@ public class AMPVer {
       case "tidy":
         tidy = bool(key, value);
         break;
+      case "inMemory":
+        inMemory = bool(key, value);
+        break;
+      case "resultLog":
+        resultLog = bool(key, value);
+        break;
+      case "quiet":
+        quiet = bool(key, value);
+        break;
       case "hashKind":
         if (value.equals("nd"))
           hashND=true;
@@ -444,20 +869,177 @@ public class AMPVer {
       case "spec":
         spec = value;
         break;
+      case "schedules": {
+        TreeSet<Integer> ids = new TreeSet<>();
+        for (String range : value.split(",")) {
+          int lo = getLow(key, range), hi = getHigh(key, range);
+          if (lo > hi)
+            err("Empty range in -schedules: "+range);
+          for (int id=lo; id<=hi; id++)
+            ids.add(id);
+        }
+        selected = new int[ids.size()];
+        int k = 0;
+        for (int id : ids)
+          selected[k++] = id;
+        selectedStr = value;
+        break;
+      }
+      case "genThreads":
+        genThreads = nat(key, value);
+        break;
+      case "batch":
+        batch = nat(key, value);
+        break;
+      case "maxFailures":
+        maxFailures = nat(key, value);
+        break;
+      case "childJVM":
+        childJVM = bool(key, value);
+        break;
+      case "childRecycle":
+        childRecycle = nat(key, value);
+        break;
+      case "childHeap":
+        childHeap = nat(key, value);
+        break;
+      case "adaptive":
+        adaptive = bool(key, value);
+        break;
+      case "timeout":
+        timeout = nat(key, value);
+        break;
+      case "memout":
+        memout = nat(key, value);
+        break;
+      case "shard": {
+        int slash = value.indexOf('/');
+        if (slash < 0)
+          err("-shard expects i/n but saw "+value);
+        shard = nat(key, value.substring(0, slash));
+        nshard = nat(key, value.substring(slash+1));
+        if (shard >= nshard)
+          err("-shard expects i/n with 0<=i<n but saw "+value);
+        break;
+      }
+      case "merge":
+        merge = bool(key, value);
+        break;
+      case "order":
+        if (!value.equals("natural") && !value.equals("lpt"))
+          err("-order expects one of natural, lpt");
+        order = value;
+        break;
+      case "executor":
+        if (!value.equals("threads") && !value.equals("forkjoin"))
+          err("-executor expects one of threads, forkjoin");
+        executorKind = value;
+        break;
       case "capacity":
         capacity = nat(key, value);
         break;
+      case "resume":
+        resume = bool(key, value);
+        break;
+      case "cacheDir":
+        cacheDir = file(value);
+        break;
+      case "metrics":
+        metricsFile = file(value);
+        break;
+      case "verbosity":
+        try {
+          Log.setLevel(Level.valueOf(value.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+          err("-verbosity expects one of result, progress, info, trace");
+        }
+        break;
+      case "count":
+        count = bool(key, value);
+        break;
+      case "show":
+        show = nat(key, value);
+        break;
+      case "campaign":
+        campaign = file(value);
+        break;
+      case "serve":
+        serve = file(value);
+        break;
+      case "coordinate": {
+        int colon = value.lastIndexOf(':');
+        if (colon == 0)
+          err("Expected [HOST:]PORT for -coordinate but saw "+value);
+        coordinateHost = colon > 0 ? value.substring(0, colon) : null;
+        coordinate = nat(key, value.substring(colon+1));
+        break;
+      }
+      case "worker":
+        worker = value;
+        break;
+      case "progress":
+        progress = nat(key, value);
+        break;
+      case "plan":
+        plan = bool(key, value);
+        break;
+      case "samples":
+        samples = nat(key, value);
+        break;
+      case "budget":
+        budget = nat(key, value);
+        break;
       default:
         civlOptions.add(arg);
       }
     }
-    if (filenames.isEmpty())
+    if (campaign != null || serve != null || worker != null)
+      return;
+    if (show >= 0) {
+      if (tmpDir == null)
+        err("-show requires -tmpDir to name the directory of the run");
+      return;
+    }
+    if (filenames.isEmpty() && !count)
       err("No filename specified on command line");
+    if (merge)
+      return;
+    if (resultLog || quiet)
+      inMemory = true;
+    if (coordinate >= 0) {
+      if (childJVM)
+        err("-childJVM cannot be used with -coordinate");
+      if (adaptive)
+        err("-adaptive cannot be used with -coordinate");
+      if (memout > 0)
+        err("-memout cannot be used with -coordinate");
+      // the schedule is sent to the worker, which reads the other
+      // files where the coordinator would:
+      inMemory = true;
+      rootDir = rootDir.getAbsoluteFile();
+      filenames.replaceAll(name -> new File(name).getAbsolutePath());
+    }
+    // the memory of a schedule verified in this JVM cannot be told
+    // from that of the others (see Watchdog):
+    if (memout > 0 && !childJVM)
+      err("-memout requires -childJVM");
+    if (memout > 0 && childHeap > 0)
+      err("-memout sets the heap of the child JVMs: it cannot be used "+
+          "with -childHeap");
     if (!("nonblocking".equals(spec) || "bounded".equals(spec) ||
           "sync".equals(spec)))
       err("spec must be one of nonblocking, bounded, or sync");
     if (valueBound < 1)
       err("valueBound must be at least 1");
+    // the arguments of a step are packed in 14 bits (see Step)
+    if (valueBound-1 > Step.MAX_ARG)
+      err("valueBound must be at most "+(Step.MAX_ARG+1)+" but saw "+
+          valueBound);
+    if (kind != SET &&
+        npreAdd_hi+(long)nthread_hi*nstep_hi-1 > Step.MAX_ARG)
+      err("There can be at most "+(Step.MAX_ARG+1)+" values added to a "+
+          kindStr()+" but npreAdd="+npreAdd_hi+", nthread="+nthread_hi+
+          " and nstep="+nstep_hi+" allow more");
     if (nthread_lo < 1)
       err("nthread_lo ("+nthread_lo+") must be at least 1");
     if (nthread_lo > nthread_hi)
@@ -473,6 +1055,45 @@ public class AMPVer {
           npreAdd_hi+")");
     if (ncore < 1)
       err("ncore must be at least 1 but saw "+ncore);
+    if (childRecycle < 1)
+      err("childRecycle must be at least 1 but saw "+childRecycle);
+    if (maxFailures < 1)
+      err("maxFailures must be at least 1 but saw "+maxFailures);
+    if (batch < 1)
+      err("batch must be at least 1 but saw "+batch);
+    if (genThreads < 1)
+      err("genThreads must be at least 1 but saw "+genThreads);
+    if (selected != null && genThreads > 1)
+      err("-schedules cannot be used with -genThreads");
+    if (selected != null && nshard > 1)
+      err("-schedules cannot be used with -shard");
+    if (plan) {
+      if (selected != null)
+        err("-schedules cannot be used with -plan");
+      if (nshard > 1)
+        err("-shard cannot be used with -plan");
+      if (batch > 1)
+        err("-batch cannot be used with -plan");
+      if (resume)
+        err("-resume cannot be used with -plan");
+      if (cacheDir != null)
+        err("-cacheDir cannot be used with -plan");
+      if (dryrun)
+        err("-dryRun cannot be used with -plan");
+      if (samples < 1)
+        err("samples must be at least 1 but saw "+samples);
+      if (!order.equals("natural"))
+        err("-order=lpt cannot be used with -plan");
+      maxFailures = Integer.MAX_VALUE; // sample every group
+    }
+    if (order.equals("lpt")) {
+      if (selected != null)
+        err("-schedules cannot be used with -order=lpt");
+      if (genThreads > 1)
+        err("-genThreads cannot be used with -order=lpt");
+      if (resume)
+        err("-resume cannot be used with -order=lpt");
+    }
     if (hashND) {
       if (hashDomainBound < 1)
         err("Nondeterministic hashing (-hashKind=nd) requires "+
@@ -488,14 +1109,23 @@ public class AMPVer {
         err("-hashRangeBound can only be used with nondeterministic hashing"+
             " (-hashKind=nd)");
     }
+    if (count)
+      return; // nothing is written
+    if (resume && tmpDir == null)
+      err("-resume requires -tmpDir to name the directory of the run");
     if (tmpDir == null) {
-      Path workingPath =
+      Path workingPath = baseDir != null ? baseDir.toPath() :
         FileSystems.getDefault().getPath("");
-      Path tmpPath = Files.createTempDirectory(workingPath, "AVREP_");
-      tmpDir = tmpPath.toFile();
+      try {
+        tmpDir = Files.createTempDirectory(workingPath, "AVREP_").toFile();
+      } catch (IOException e) {
+        err("Could not make a directory for the run in "+
+            workingPath.toAbsolutePath()+": "+e.getMessage());
+      }
     } else {
       // make the directory if it isn't already there
-      tmpDir.mkdir();
+      if (!tmpDir.mkdir() && !tmpDir.isDirectory())
+        err("Could not make directory "+tmpDir);
     }
     out.println("Generating schedules for "+
                 "nthread="+nthread_lo+".."+nthread_hi+" "+
@@ -512,32 +1142,280 @@ public class AMPVer {
                 "addsDominate="+addsDominate+" "+
                 "threadSym="+threadSym+" "+
                 "noAllAdd="+noAllAdd);
-    out.println("dryrun="+dryrun+" tidy="+tidy+" ncore="+ncore);
+    out.println("dryrun="+dryrun+" tidy="+tidy+" inMemory="+inMemory+
+                " resultLog="+resultLog+" quiet="+quiet+
+                " ncore="+ncore+
+                " executor="+executorKind+" order="+order+
+                " genThreads="+genThreads+
+                " batch="+batch+" maxFailures="+maxFailures+
+                " timeout="+timeout+" memout="+memout+
+                " childJVM="+childJVM+" adaptive="+adaptive+
+                " progress="+progress+
+                " verbosity="+Log.level().toString().toLowerCase()+
+                " resume="+resume);
+    if (nshard > 1)
+      out.println("shard="+shard+"/"+nshard);
+    if (cacheDir != null)
+      out.println("cacheDir="+cacheDir);
+    if (metricsFile != null)
+      out.println("metrics="+metricsFile);
     out.println();
   }
 
-  private void makeScheduleIterator() {
+  /** Returns a new iterator over all schedules, in natural order. */
+  private StratifiedScheduleIterator newScheduleIterator() {
     switch (kind) {
     case SET:
-      schedIter = new SetScheduleIterator
+      return new SetScheduleIterator
         (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo,
          npreAdd_hi, valueBound, threadSym);
-      break;
     case QUEUE:
-      schedIter = new QueueScheduleIterator
+      return new QueueScheduleIterator
         (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo, npreAdd_hi,
          genericVals, addsDominate, threadSym);
-      break;
     case PQUEUE:
-      schedIter = new PQScheduleIterator
+      return new PQScheduleIterator
         (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo, npreAdd_hi,
          genericVals, distinctPriorities, addsDominate, threadSym, noAllAdd);
-      break;
     default:
       throw new RuntimeException("unreachable");
     }
   }
 
+  private void makeScheduleIterator() {
+    naturalIter = newScheduleIterator();
+    seekIter = naturalIter;
+    if (plan) {
+      ScheduleIndex index = new ScheduleIndex(naturalIter);
+      if (index.count() > Integer.MAX_VALUE)
+        err("There are "+index.count()+" schedules, which is too many for "+
+            "-plan: use smaller bounds");
+      planner = new Planner(index, samples, 0);
+      selected = planner.sample();
+      selectedStr = "plan";
+    }
+    if (selected != null) {
+      ScheduleIndex index = new ScheduleIndex(naturalIter);
+      long count = index.count();
+      for (int id : selected)
+        if (id >= count)
+          err("There is no schedule "+id+": there are "+count+
+              " schedules, numbered from 0");
+      seekIter = new SelectedScheduleIterator(index, selected);
+      out.println("Selected "+selected.length+" of "+count+" schedules.");
+      out.println();
+    }
+    ScheduleIndex index = null;
+    if (nshard > 1) {
+      index = new ScheduleIndex(naturalIter);
+      long[] bounds = index.shardBounds(nshard);
+      long lo = bounds[shard], hi = bounds[shard+1];
+      if (hi > Integer.MAX_VALUE)
+        err("Shard "+shard+"/"+nshard+" ends at schedule "+hi+
+            ", which is too large: use more shards");
+      ScheduleIterator s = index.seek(lo);
+      naturalIter.setCursor(s == null || lo == hi ? null : s.getCursor());
+      firstId = (int)lo;
+      endId = (int)hi;
+      sid.set(firstId);
+      out.println("Shard "+shard+"/"+nshard+": schedules "+lo+".."+(hi-1)+
+                  " of "+bounds[nshard]+".");
+      out.println();
+    }
+    schedIter = seekIter;
+    if (order.equals("lpt")) {
+      if (index == null) {
+        index = new ScheduleIndex(naturalIter);
+        long count = index.count();
+        if (count > Integer.MAX_VALUE)
+          err("There are "+count+" schedules, which is too many for "+
+              "-order=lpt: use -shard");
+        endId = (int)count;
+      }
+      schedIter = new LPTScheduleIterator(index, firstId, endId);
+    }
+    if (selected != null)
+      total = selected.length;
+    else if (index != null)
+      total = Math.min(endId, index.count()) - firstId;
+    else
+      total = new ScheduleIndex(naturalIter).count();
+  }
+
+  /**
+   * Prints the number of schedules with each number of threads,
+   * steps and pre-adds, and in total (-count).  The counts are
+   * computed by ScheduleIndex from the kinds of schedules, which
+   * already account for thread symmetry and the other options that
+   * restrict the schedules, so the schedules are not enumerated.
+   */
+  private void printCount() {
+    ScheduleIndex index = new ScheduleIndex(newScheduleIterator());
+    out.println("nthread  nstep  npreAdd  schedules");
+    int[] shape = null; // the first 3 entries of the stratum
+    long n = 0;
+    for (int k=0; k<=index.nstrata(); k++) {
+      int[] stratum = k < index.nstrata() ? index.stratum(k) : null;
+      if (shape != null &&
+          (stratum == null || !Arrays.equals(shape, 0, 3, stratum, 0, 3))) {
+        out.println(String.format("%7d  %5d  %7d  %9d",
+                                  shape[0], shape[1], shape[2], n));
+        n = 0;
+      }
+      if (stratum == null) break;
+      shape = stratum;
+      n += index.count(k);
+    }
+    out.println(index.count()+" schedules.");
+    if (total != index.count())
+      out.println(total+" schedules selected.");
+  }
+
+  /**
+   * A description of everything that determines the schedules
+   * generated and the way each is verified.  A checkpoint can only
+   * be resumed by a run with the same configuration.
+   */
+  private String configString() {
+    return baseConfigString()+
+      (nshard == 1 ? "" : " shard="+shard+"/"+nshard);
+  }
+
+  /** The configuration without the shard, which is the same for all
+   * shards of a run. */
+  private String baseConfigString() {
+    return "kind="+kindStr()+
+      " nthread="+nthread_lo+".."+nthread_hi+
+      " nstep="+nstep_lo+".."+nstep_hi+
+      " npreAdd="+npreAdd_lo+".."+npreAdd_hi+
+      " valueBound="+valueBound+
+      " genericVals="+genericVals+
+      " distinctPriorities="+distinctPriorities+
+      " addsDominate="+addsDominate+
+      " threadSym="+threadSym+
+      " noAllAdd="+noAllAdd+
+      (selected == null ? "" : " schedules="+selectedStr)+
+      " "+String.join(" ", coreCommands);
+  }
+
+  /**
+   * Creates the checkpoint for this run.  If resuming, reads the
+   * checkpoint from tmpDir and moves the schedule iterator to the
+   * first schedule that was not verified.
+   */
+  private void makeCheckpoint() throws IOException {
+    if (order.equals("lpt"))
+      return; // the checkpoint follows the natural order
+    String config = configString();
+    if (resume) {
+      checkpoint = Checkpoint.read(tmpDir);
+      if (checkpoint == null) {
+        out.println("No checkpoint in "+tmpDir+
+                    ": starting from the first schedule.");
+      } else {
+        if (!config.equals(checkpoint.config))
+          err("The checkpoint in "+tmpDir+" was made with a different "+
+              "configuration:\n  "+checkpoint.config);
+        seekIter.setCursor(checkpoint.cursor);
+        sid.set(checkpoint.next);
+        ncompleted0 = checkpoint.done.size();
+        if (selected == null)
+          ncompleted0 += checkpoint.next - firstId;
+        else
+          for (int id : selected)
+            if (id < checkpoint.next) ncompleted0++;
+        ncompleted.set(ncompleted0);
+        out.println("Resuming at schedule "+sid+" ("+
+                    checkpoint.done.size()+
+                    " later schedules already verified).");
+        out.println();
+        return;
+      }
+    }
+    checkpoint = new Checkpoint(config);
+  }
+
+  /** If more than one generation thread was requested, replaces the
+   * schedule iterator with one that generates the same schedules in
+   * parallel.  Must be called after the iterator is positioned. */
+  private void makeParallelIterator() {
+    if (genThreads > 1)
+      schedIter = new ParallelScheduleIterator(naturalIter, genThreads);
+  }
+
+  /** Opens the result cache, if one was requested. */
+  private void makeCache() {
+    if (cacheDir == null || dryrun) return;
+    try {
+      cache = new ResultCache(cacheDir, coreCommands,
+                              new File(rootDir, "include"));
+    } catch (IOException e) {
+      err("Could not open cache "+cacheDir+": "+e.getMessage());
+    }
+  }
+
+  /** Opens the result log, if resultLog.  Unless resuming, the log
+   * of an earlier run in tmpDir is deleted. */
+  private void makeResultLog() {
+    if (!resultLog) return;
+    if (!resume) {
+      new File(tmpDir, ResultLog.LOG).delete();
+      new File(tmpDir, ResultLog.INDEX).delete();
+    }
+    try {
+      results = new ResultLog(tmpDir);
+    } catch (IOException e) {
+      err("Could not open result log in "+tmpDir+": "+e.getMessage());
+    }
+  }
+
+  /** Adds the record of sched, with the given verdict and output of
+   * CIVL, to the result log, exiting if that fails. */
+  void logResult(Schedule sched, String verdict, String output) {
+    Schedule[] members = members(sched);
+    int[] ids = new int[members.length];
+    for (int i=0; i<ids.length; i++)
+      ids[i] = members[i].id;
+    try {
+      results.append(fileStem(sched), ids, verdict, sched.text != null ?
+                     sched.text : scheduleText(sched), output);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Prints the result of schedule show from the result log in
+   * tmpDir.  Returns the exit code: 0, or 1 if there is none. */
+  private int printResult() {
+    ResultLog.Result result = null;
+    try {
+      result = ResultLog.read(tmpDir, show);
+    } catch (IOException e) {
+      errOut.println("Could not read result log in "+tmpDir+": "+
+                         e.getMessage());
+      return 1;
+    }
+    if (result == null) {
+      errOut.println("No result for schedule "+show+" in "+tmpDir);
+      return 1;
+    }
+    out.println("Schedule "+show+" ("+result.stem+"): "+result.verdict);
+    out.println("=== "+result.stem+".cvl ===");
+    out.print(result.source);
+    out.println("=== "+result.stem+".out ===");
+    out.print(result.output);
+    return 0;
+  }
+
+  private void makeMetrics() {
+    if (metricsFile == null || dryrun) return;
+    try {
+      metrics = new MetricsLog(metricsFile);
+    } catch (IOException e) {
+      err("Could not open metrics file "+metricsFile+": "+e.getMessage());
+    }
+  }
+
   /**
    * How many arguments does an operation (ADD/REMOVE/CONTAIN)
    * for a given kind of data structure take?
@@ -554,18 +1432,67 @@ public class AMPVer {
 
   void writeSchedule(PrintStream out, Schedule sched) {
     int id = sched.id;
-    int nthread = sched.nthread;
-    int npreAdd = sched.presteps.length;
     DateTimeFormatter dtf =
       DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");  
     LocalDateTime now = LocalDateTime.now();  
+    if (sched.batch != null) {
+      out.print("/* Batch "+id+" of ");
+      out.print(dtf.format(now));
+      out.println(" */");
+      writeMakeBatch(out, sched);
+      return;
+    }
     out.print("/* Schedule "+id+" of ");
     out.print(dtf.format(now));
     out.println(" */");
+    writeMakeSchedule(out, sched);
+  }
+
+  /**
+   * Writes the translation unit for a batch: a function
+   * make_schedule_K for the K-th member, and a make_schedule that
+   * calls one of them, chosen by the input AV_BATCH.  The input is
+   * not given a value, so CIVL verifies every member in one run and
+   * the other translation units are parsed once for the batch.
+   */
+  void writeMakeBatch(PrintStream out, Schedule sched) {
+    int n = sched.batch.length;
+    writeIncludes(out);
+    for (int k=0; k<n; k++) {
+      out.println("/* Schedule "+sched.batch[k].id+" */");
+      writeMakeScheduleFunction(out, sched.batch[k], "make_schedule_"+k);
+    }
+    out.println("$input int AV_BATCH;");
+    out.println("$assume(0 <= AV_BATCH && AV_BATCH < "+n+");");
+    out.println("schedule_t make_schedule() {");
+    out.println("  switch (AV_BATCH) {");
+    for (int k=0; k<n; k++)
+      out.println("  case "+k+": return make_schedule_"+k+"();");
+    out.println("  default: abort();");
+    out.println("  }");
+    out.println("}");
+  }
+
+  void writeIncludes(PrintStream out) {
     out.println("#include \"driver.h\"");
     out.println("#include \"schedule.h\"");
     out.println("#include <stdlib.h>");
-    out.println("schedule_t make_schedule() {");
+  }
+
+  /** Writes the schedule translation unit without the header comment.
+   * The text depends only on the steps of the schedule, not its ID. */
+  void writeMakeSchedule(PrintStream out, Schedule sched) {
+    writeIncludes(out);
+    writeMakeScheduleFunction(out, sched, "make_schedule");
+  }
+
+  /** Writes the definition of a function with the given name that
+   * returns sched. */
+  void writeMakeScheduleFunction(PrintStream out, Schedule sched,
+                                 String name) {
+    int nthread = sched.nthread;
+    int npreAdd = sched.npreAdd;
+    out.println("schedule_t "+name+"() {");
     out.println("  schedule_t sched;");
     out.println("  int nthread = "+nthread+";");
     out.println("  sched.kind = "+sched.kind+";");
@@ -582,28 +1509,29 @@ public class AMPVer {
     else {
       out.println("  sched.preAdds = malloc("+npreAdd+"*sizeof(step_t));");
       for (int i=0; i<npreAdd; i++) {
-        Step step = sched.presteps[i];
+        int step = sched.code[i];
         out.print("  sched.preAdds["+i+"] = schedule_make_step_2(ADD, ");
-        out.println(step.arg0+", "+step.arg1+");");
+        out.println(Step.arg0(step)+", "+Step.arg1(step)+");");
       }
     }
     out.println("  sched.nstep = "+sched.nstep+";");
     out.println("  sched.nsteps = malloc(nthread*sizeof(int));");
     for (int i=0; i<nthread; i++) {
-      out.println("  sched.nsteps["+i+"] = "+sched.steps[i].length+";");
+      out.println("  sched.nsteps["+i+"] = "+sched.nsteps(i)+";");
     }
     out.println("  sched.steps = malloc(nthread*sizeof(step_t*));");
     out.println("  for (int i=0; i<nthread; i++)");
     out.print("    sched.steps[i] = ");
     out.println("malloc(sched.nsteps[i]*sizeof(step_t));");
     for (int i=0; i<nthread; i++) {
-      for (int j=0; j<sched.steps[i].length; j++) {
-        Step step = sched.steps[i][j];
-        int narg = numArgs(kind, step.op);
+      for (int j=0; j<sched.nsteps(i); j++) {
+        int step = sched.step(i, j);
+        Op op = Step.op(step);
+        int narg = numArgs(kind, op);
         out.print("  sched.steps["+i+"]["+j+"] = ");
-        out.print("schedule_make_step_"+narg+"("+step.op);
-        if (narg > 0) out.print(", "+step.arg0);
-        if (narg > 1) out.print(", "+step.arg1);
+        out.print("schedule_make_step_"+narg+"("+op);
+        if (narg > 0) out.print(", "+Step.arg0(step));
+        if (narg > 1) out.print(", "+Step.arg1(step));
         out.println(");");
       }
     }
@@ -611,124 +1539,761 @@ public class AMPVer {
     out.println("}");
   }
 
+  /** Time (seconds) since the start of execute, to 0.1s. */
+  double seconds() {
+    return 0.1*((System.nanoTime() - time0)/100000000L);
+  }
+
   void printTime() {
-    out.println("Time (seconds) = "+
-                0.1*((System.nanoTime() - time0)/100000000L));
+    out.println("Time (seconds) = "+seconds());
   }
 
-  void executeSchedule(Schedule sched) {
+  /** If this run is one shard of the schedules, writes the summary
+   * of the shard to tmpDir. */
+  synchronized void writeShardSummary() {
+    if (nshard == 1) return;
+    ShardSummary summary =
+      new ShardSummary(baseConfigString(), shard, nshard, firstId, endId);
+    summary.schedules = sid.get() - firstId;
+    summary.failed.addAll(failures);
+    for (Map.Entry<Integer,Outcome> e : exceeded.entrySet())
+      (e.getValue() == Outcome.TIMEOUT ? summary.timeout : summary.memout)
+        .add(e.getKey());
+    summary.time = seconds();
+    try {
+      summary.write(tmpDir);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Returns the text written by writeSchedule. */
+  String scheduleText(Schedule sched) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream bout = new PrintStream(bytes);
+    writeSchedule(bout, sched);
+    bout.close();
+    return bytes.toString();
+  }
+
+  /** Returns the text written by writeMakeSchedule. */
+  String makeScheduleText(Schedule sched) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream bout = new PrintStream(bytes);
+    writeMakeSchedule(bout, sched);
+    bout.close();
+    return bytes.toString();
+  }
+
+  void cacheHit(int id) {
+    ncached.incrementAndGet();
+    Log.log(Level.INFO, "Schedule "+id+": result found in cache");
+  }
+
+  /** The name, without extension, of the files for sched:
+   * schedule_ID, or batch_ID for a batch. */
+  String fileStem(Schedule sched) {
+    return (sched.batch == null ? "schedule_" : "batch_")+sched.id;
+  }
+
+  /** The schedule file for sched. */
+  File scheduleFile(Schedule sched) {
+    return new File(tmpDir, fileStem(sched)+".cvl");
+  }
+
+  /** Writes text to file, exiting if that fails. */
+  void writeFile(File file, String text) {
+    PrintStream fout = null;
+    try {
+      fout = new PrintStream(file);
+    } catch (FileNotFoundException e) {
+      fail(e);
+    }
+    fout.print(text);
+    fout.close();
+  }
+
+  /** Gives the result of sched to the listener, if there is one. */
+  private void publish(Schedule sched, Verdict verdict, String output) {
+    if (listener == null) return;
+    listener.accept(new ScheduleResult(sched.id, verdict, sched.text != null ?
+                                       sched.text : scheduleText(sched),
+                                       output));
+  }
+
+  /** Returns the schedules verified by sched: the members of the
+   * batch if sched is a batch, otherwise sched itself. */
+  Schedule[] members(Schedule sched) {
+    return sched.batch != null ? sched.batch : new Schedule[] { sched };
+  }
+
+  /**
+   * The emission stage: writes the schedule file for sched, or in
+   * memory mode, sets sched.text.  Returns true if the schedule must
+   * then be verified, false if it is finished already (the result was
+   * cached or this is a dry run).  If sched is a batch, its members
+   * whose results are cached are removed from the batch.
+   */
+  boolean emitSchedule(Schedule sched) {
     int id = sched.id;
-    File sfile = new File(tmpDir, "schedule_"+id+".cvl");
-    ArrayList<String> commands = new ArrayList<>();
-    commands.addAll(coreCommands);
-    commands.add(sfile.toString());
-    /*
-    out.print("civl ");
-    for (String str:commands)
-      out.print(str+" ");
-    out.println();
-    out.println();
-    */
-    PrintStream sout = null;
+    if (cancelled)
+      return false;
+    if (cache != null) {
+      ArrayList<Schedule> uncached = new ArrayList<>();
+      for (Schedule member : members(sched)) {
+        if (cache.contains(cache.key(makeScheduleText(member)))) {
+          cacheHit(member.id);
+          if (results != null)
+            logResult(member, "CACHED", null);
+          publish(member, Verdict.CACHED, null);
+          if (metrics != null)
+            metrics.record(member, "CACHED", -1, null, null);
+          finishTask(member.id);
+        } else
+          uncached.add(member);
+      }
+      if (uncached.isEmpty())
+        return false;
+      if (sched.batch != null)
+        sched.batch = uncached.toArray(new Schedule[0]);
+    }
+    if (inMemory) {
+      if (dryrun) {
+        if (results != null)
+          logResult(sched, "DRYRUN", null);
+        for (Schedule member : members(sched)) {
+          publish(member, Verdict.DRYRUN, null);
+          finishTask(member.id);
+        }
+        return false;
+      }
+      sched.text = scheduleText(sched);
+      return true;
+    }
+    File sfile = scheduleFile(sched);
+    writeFile(sfile, scheduleText(sched));
+    if (dryrun) {
+      if (tidy) sfile.delete();
+      for (Schedule member : members(sched)) {
+        publish(member, Verdict.DRYRUN, null);
+        finishTask(member.id);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs CIVL with the given arguments on sched, within the budgets
+   * of the watchdog, in this JVM or in the child JVM of this thread,
+   * or on a worker (see Coordinator).  Its output is written to
+   * outStream and the resources it used to usage.  Returns null if
+   * CIVL was not run because the run was cancelled while waiting for
+   * a worker.
+   */
+  private Outcome runCivl(Schedule sched, String[] args,
+                          PrintStream outStream, MetricsLog.Usage usage) {
+    if (coordinator != null)
+      return coordinator.run(sched.id, args, sched.text,
+                             members(sched).length, outStream, usage);
+    if (childJVM) {
+      ChildJVM c = child();
+      return watchdog.run(() -> c.run(args, outStream, usage),
+                          members(sched).length, c::kill);
+    }
+    UserInterface ui = new UserInterface(outStream, outStream);
+    return watchdog.run(() -> usage.measure
+                        (() -> ui.run(args) ? Outcome.PASS : Outcome.FAIL),
+                        members(sched).length, null);
+  }
+
+  /** Opens the stream to which CIVL prints: outBytes, emptied, if
+   * not null, else outFile. */
+  private PrintStream openOutput(File outFile,
+                                 ByteArrayOutputStream outBytes) {
+    if (outBytes != null) {
+      outBytes.reset();
+      return new PrintStream(outBytes);
+    }
     try {
-      sout = new PrintStream(sfile);
+      return new PrintStream(outFile);
     } catch (FileNotFoundException e) {
-      System.err.println(e);
-      System.err.flush();
-      out.flush();
-      System.exit(1);
-    }
-    writeSchedule(sout, sched);
-    sout.close();
-    if (!dryrun) {
-      String[] commandArray = commands.toArray(new String[0]);
-      File outFile = new File(tmpDir, "schedule_"+id+".out");
-      PrintStream outStream = null;
+      fail(e);
+      throw new RuntimeException("unreachable");
+    }
+  }
+
+  /**
+   * The verification stage: runs CIVL on the schedule file written
+   * by emitSchedule.  In memory mode, the schedule is written to the
+   * slot file of this thread, the output of CIVL is kept in memory,
+   * and both are written to the usual files only if CIVL fails.  If
+   * CIVL fails on a batch, its members are verified one at a time to
+   * find the ones that fail.  In quiet mode, a schedule that fails
+   * is verified again with full output.  With -adaptive, a run that
+   * runs out of memory is retried up to Governor.RETRIES times.
+   * Returns false if an error was detected, true if not, if the
+   * schedule exceeded its budget (see Watchdog), or if it was skipped
+   * because the run has been cancelled.
+   */
+  boolean verifySchedule(Schedule sched) {
+    int id = sched.id;
+    if (cancelled)
+      return true;
+    File sfile = scheduleFile(sched);
+    File outFile = new File(tmpDir, fileStem(sched)+".out");
+    File inFile = sfile;
+    ByteArrayOutputStream outBytes = null;
+    if (inMemory) {
+      inFile = slotFile.get();
+      writeFile(inFile, sched.text);
+      outBytes = new ByteArrayOutputStream();
+    }
+    ArrayList<String> commands = new ArrayList<>();
+    commands.addAll(coreCommands);
+    commands.add(inFile.toString());
+    String[] commandArray = commands.toArray(new String[0]);
+    Outcome outcome;
+    MetricsLog.Usage usage;
+    long wall;
+    // in quiet mode, the output is only kept if it is needed:
+    boolean discard = quiet && metrics == null && planner == null &&
+      results == null && listener == null;
+    // with -adaptive, a run that exhausted the heap is retried with
+    // fewer runs in progress, the last time alone; one that exceeded
+    // its budget (-memout) would exceed it again:
+    boolean retry = governor != null && governor.adaptive() && memout == 0;
+    for (int attempt=0; ; attempt++) {
+      PrintStream outStream = discard ?
+        new PrintStream(OutputStream.nullOutputStream()) :
+        openOutput(outFile, outBytes);
+      usage = new MetricsLog.Usage();
+      if (governor != null)
+        governor.acquire(retry && attempt == Governor.RETRIES);
+      long start = System.nanoTime();
       try {
-        outStream = new PrintStream(outFile);
-      } catch (FileNotFoundException e) {
-        System.err.println(e);
-        System.err.flush();
-        out.flush();
-        System.exit(1);
+        outcome = runCivl(sched, commandArray, outStream, usage);
+      } finally {
+        if (governor != null)
+          governor.release();
+      }
+      wall = System.nanoTime() - start;
+      outStream.close();
+      if (outcome == null) // not run: the run was cancelled meanwhile
+        return true;
+      if (outcome != Outcome.MEMOUT || !retry)
+        break;
+      governor.outOfMemory();
+      if (attempt == Governor.RETRIES || cancelled)
+        break;
+      Log.log(Level.INFO, "Out of memory on "+
+              (sched.batch == null ? "schedule " : "batch ")+id+
+              ": retrying with "+(attempt+1 == Governor.RETRIES ? "no other" :
+                                  "at most "+governor.limit())+
+              " schedules in progress");
+    }
+    boolean result = outcome == Outcome.PASS;
+    String output = metrics == null && planner == null &&
+      results == null && listener == null ? null :
+      inMemory ? outBytes.toString() : readOutput(outFile);
+    if (metrics != null)
+      metrics.record(sched, outcome.toString(), wall, usage, output);
+    if (planner != null) {
+      String civlMemory = MetricsLog.stat(output, "civlMemory");
+      planner.record(sched, outcome, wall, usage.peakHeap >= 0 ?
+                     usage.peakHeap : civlMemory != null ?
+                     (long)Double.parseDouble(civlMemory) : -1);
+    }
+    if (quiet && outcome == Outcome.FAIL && sched.batch == null) {
+      Log.log(Level.INFO, "Error detected on schedule "+id+
+              ": verifying it again with full output");
+      ArrayList<String> replay = new ArrayList<>(replayCommands);
+      replay.add(inFile.toString());
+      PrintStream outStream = openOutput(outFile, outBytes);
+      if (governor != null)
+        governor.acquire(false);
+      try {
+        runCivl(sched, replay.toArray(new String[0]), outStream,
+                new MetricsLog.Usage());
+      } finally {
+        if (governor != null)
+          governor.release();
       }
-      UserInterface ui = new UserInterface(outStream, outStream);
-      boolean result = ui.run(commandArray);
       outStream.close();
+      if (output != null)
+        output = outBytes.toString();
+    }
+    if (results != null)
+      logResult(sched, outcome.toString(), output);
+    if (sched.batch == null)
+      publish(sched, Verdict.valueOf(outcome.name()), output);
+    if (inMemory) {
       if (!result) {
-        out.println("collect: error detected on schedule "+id+
-                    ".  Exiting.");
-        printTime();
-        System.err.flush();
-        out.flush();
-        System.exit(2);
-      } else if (tidy) {
-        sfile.delete();
-        outFile.delete();
+        writeFile(sfile, sched.text);
+        writeFile(outFile, "CIVL was run on "+inFile+", a copy of "+
+                  sfile.getName()+"\n"+outBytes.toString());
+      }
+      sched.text = null;
+    }
+    if (!result && sched.batch == null) {
+      completed();
+      if (outcome != Outcome.FAIL) {
+        recordExceeded(id, outcome);
+        return true;
+      }
+      recordFailure(id, "schedule "+id);
+      return false;
+    }
+    if (!result) {
+      Log.log(Level.INFO, (outcome == Outcome.FAIL ? "Error detected on" :
+                           outcome+" on")+" batch "+id+
+              ": verifying its schedules one at a time.");
+      boolean found = false;
+      for (Schedule member : sched.batch)
+        if (emitSchedule(member) && !verifySchedule(member))
+          found = true;
+      if (outcome == Outcome.FAIL && !found && !cancelled) {
+        recordFailure(id, "batch "+id+", but on none of its schedules alone");
+        return false;
       }
-    } else if (tidy) {
+      return !found;
+    }
+    for (Schedule member : members(sched)) {
+      if (cache != null) {
+        try {
+          cache.add(cache.key(makeScheduleText(member)));
+        } catch (IOException e) {
+          errOut.println("Warning: could not add schedule "+member.id+
+                             " to cache: "+e);
+        }
+      }
+    }
+    if (tidy && !inMemory) {
       sfile.delete();
+      outFile.delete();
+    }
+    for (Schedule member : members(sched)) {
+      if (sched.batch != null)
+        publish(member, Verdict.PASS, null);
+      finishTask(member.id);
     }
+    return true;
   }
 
-  synchronized Schedule getTask(int wid) {
-    if (schedIter.hasNext()) {
-      Schedule result = schedIter.next();
-      result.id = sid;
-      out.println("Worker "+wid+" working on schedule "+sid);
-      result.print(out);
-      out.println();
-      sid++;
-      return result;
+  /** Returns the contents of the CIVL output file, or null if it
+   * cannot be read. */
+  static String readOutput(File file) {
+    try {
+      return new String(Files.readAllBytes(file.toPath()));
+    } catch (IOException e) {
+      return null;
     }
-    return null;
   }
 
-  class Worker extends Thread {
-    int wid = -1;
+  /** Records that an error was detected on the schedule (or batch)
+   * with the given ID, described by what, and cancels the run if
+   * maxFailures schedules have failed. */
+  synchronized void recordFailure(int id, String what) {
+    failures.add(id);
+    Log.log(Level.RESULT, "Error detected on "+what+".");
+    if (failures.size() >= maxFailures)
+      cancel(failures.size()+" of at most "+maxFailures+" schedules failed");
+  }
+
+  /** Cancels the run, for the reason why: no more schedules are
+   * verified, and those in progress are completed. */
+  synchronized void cancel(String why) {
+    if (cancelled) return;
+    cancelled = true;
+    Log.log(Level.RESULT, "Cancelling the run: "+why+".");
+  }
 
-    Worker(int wid) {
-      this.wid = wid;
+  /** Returns the child JVM of the calling thread, starting a new
+   * one if there is none or it is worn out.  With -memout, the heap
+   * of the child is the memory budget of a run of CIVL. */
+  ChildJVM child() {
+    ChildJVM c = child.get();
+    if (c != null && !c.worn())
+      return c;
+    if (c != null)
+      c.close();
+    try {
+      c = new ChildJVM(childRecycle, memout > 0 ? memout*batch : childHeap);
+    } catch (IOException e) {
+      fail(new IOException("Could not start child JVM: "+e.getMessage(), e));
     }
-    
-    public void run() {
-      out.println("Worker "+wid+" starting");
-      while (true) {
-        Schedule sched = getTask(wid);
-        if (sched == null) break;
-        executeSchedule(sched);
+    child.set(c);
+    synchronized (children) {
+      children.add(c);
+    }
+    return c;
+  }
+
+  /** Records that the schedule with the given ID was stopped for
+   * exceeding its budget, with the given outcome. */
+  synchronized void recordExceeded(int id, Outcome outcome) {
+    exceeded.put(id, outcome);
+    Log.log(Level.RESULT, "Schedule "+id+": "+outcome);
+  }
+
+  /** Has the run been cancelled? */
+  boolean cancelled() {
+    return cancelled;
+  }
+
+  /** Runs all stages for one schedule in the calling thread. */
+  void executeSchedule(Schedule sched) {
+    if (emitSchedule(sched))
+      verifySchedule(sched);
+  }
+
+  /**
+   * The generation stage: adds up to n schedules to verify, with
+   * their IDs set, to the given collection.  If batch>1, consecutive
+   * schedules are grouped into batches, each of which counts as one
+   * schedule.  Returns the number added, which is less than n only if
+   * there are no more.  Should only be called by the
+   * ScheduleDispenser.
+   */
+  int nextSchedules(int n, Collection<Schedule> result) {
+    int count = 0;
+    ArrayList<Schedule> members = new ArrayList<>();
+    synchronized (generation) {
+      while (count < n && !cancelled && sid.get() < endId &&
+             schedIter.hasNext()) {
+        int[] cursor = schedIter.getCursor();
+        Schedule sched = schedIter.next();
+        if (sched.id < 0)
+          sched.id = sid.getAndIncrement();
+        else if (checkpoint == null)
+          sid.incrementAndGet(); // out of order: sid counts the schedules
+        else
+          sid.set(sched.id+1); // a selected schedule
+        if (checkpoint != null) {
+          synchronized (checkpoint) {
+            if (checkpoint.done.contains(sched.id))
+              continue; // verified by an earlier run
+            checkpoint.dispatch(sched.id, cursor);
+          }
+        }
+        if (batch > 1) {
+          members.add(sched);
+          if (members.size() < batch)
+            continue;
+          sched = makeBatch(members);
+          members.clear();
+        }
+        result.add(sched);
+        count++;
       }
-      out.println("Worker "+wid+" terminating");
     }
+    if (!members.isEmpty()) {
+      result.add(makeBatch(members));
+      count++;
+    }
+    return count;
   }
 
-  void execute() throws IOException {
-    time0 = System.nanoTime();
-    Worker[] workers = new Worker[ncore];
-    for (int i=0; i<ncore; i++) {
-      workers[i] = new Worker(i);
-      workers[i].start();
+  /** Returns a batch of the given schedules, or the schedule itself
+   * if there is only one.  The ID of a batch is that of its first
+   * member. */
+  private Schedule makeBatch(List<Schedule> members) {
+    if (members.size() == 1)
+      return members.get(0);
+    Schedule result = new Schedule(kind);
+    result.id = members.get(0).id;
+    result.batch = members.toArray(new Schedule[0]);
+    return result;
+  }
+
+  /** Reports that worker wid is working on sched, with its steps at
+   * level TRACE.  The report is formatted in the sink of the worker
+   * and then logged as one message, so reports of different workers
+   * are not interleaved. */
+  void printTask(int wid, Schedule sched) {
+    if (!Log.enabled(Level.INFO)) return;
+    PrintStream bout = Log.sink();
+    bout.println("Worker "+wid+" working on schedule "+sched.id);
+    if (Log.enabled(Level.TRACE)) {
+      sched.print(bout);
+      bout.println();
+    }
+    Log.commit();
+  }
+
+  /** Records the successful verification of schedule id in the
+   * checkpoint.  The thread that finds the checkpoint file out of
+   * date writes it; the others do not wait for it. */
+  void finishTask(int id) {
+    completed();
+    if (checkpoint == null) return;
+    synchronized (checkpoint) {
+      checkpoint.finish(id);
     }
-    for (int i=0; i<ncore; i++) {
+    long now = System.nanoTime(), last = checkpointTime.get();
+    if (now - last >= CHECKPOINT_INTERVAL &&
+        checkpointTime.compareAndSet(last, now))
+      saveCheckpoint();
+  }
+
+  /** Counts one more schedule completed, and prints a progress
+   * report if it is time for one. */
+  void completed() {
+    long done = ncompleted.incrementAndGet();
+    if (progress == 0 || !Log.enabled(Level.PROGRESS))
+      return;
+    long now = System.nanoTime(), last = progressTime.get();
+    if (now - last < progress*1000000000L ||
+        !progressTime.compareAndSet(last, now))
+      return;
+    double elapsed = (now - time0)/1e9;
+    double rate = (done - ncompleted0)/elapsed;
+    Log.log(Level.PROGRESS, String.format
+            ("Progress: %d of %d schedules (%.1f%%), "+
+             "%.1f schedules/s, %s elapsed, ETA %s.",
+             done, total, percent(done, total), rate,
+             duration(elapsed), duration((total - done)/rate)));
+  }
+
+  /** Formats a time in seconds as H:MM:SS. */
+  static String duration(double seconds) {
+    long s = Math.round(seconds);
+    return String.format("%d:%02d:%02d", s/3600, s/60%60, s%60);
+  }
+
+  /** Writes the checkpoint file, if there is one, holding the
+   * generation lock so that the iterator is not moving. */
+  private void saveCheckpoint() {
+    if (results != null) {
       try {
-        workers[i].join();
-      } catch (InterruptedException e) {
-        out.println("Thread "+i+" interrupted");
-        System.err.flush();
-        out.flush();
-        System.exit(1);
+        results.flush(); // before the checkpoint counts its schedules
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    if (checkpoint == null) return;
+    synchronized (generation) {
+      synchronized (checkpoint) {
+        checkpoint.update(sid.get(), sid.get() < endId &&
+                          schedIter.hasNext() ? schedIter.getCursor() : null);
+        checkpointTime.set(System.nanoTime());
+        try {
+          checkpoint.write(tmpDir);
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+    }
+  }
+
+  AMPVer() {
+    this(System.out);
+  }
+
+  AMPVer(PrintStream out) {
+    this(out, System.err, null);
+  }
+
+  /** A run printing its results to out and its errors to errOut,
+   * resolving relative file names against baseDir (if not null) */
+  AMPVer(PrintStream out, PrintStream errOut, File baseDir) {
+    this.out = out;
+    this.errOut = errOut;
+    this.baseDir = baseDir;
+    rootDir = baseDir != null ? baseDir :
+      new File(System.getProperty("user.dir"));
+  }
+
+  /**
+   * Verifies the schedules selected by the command line, printing
+   * the results.  Returns the exit code: 0 if all pass, 2 if an
+   * error was detected, 3 if not, but some schedules exceeded their
+   * budgets or the run was cancelled.
+   */
+  int verify() throws IOException {
+    makeCoreCommands();
+    makeCache();
+    makeMetrics();
+    makeResultLog();
+    makeScheduleIterator();
+    makeCheckpoint();
+    makeParallelIterator();
+    return execute();
+  }
+
+  int ncore() {
+    return ncore;
+  }
+
+  boolean adaptive() {
+    return adaptive;
+  }
+
+  /** Number of schedules this run verifies */
+  long total() {
+    return total;
+  }
+
+  /** Number of schedules completed so far */
+  long ncompleted() {
+    return ncompleted.get();
+  }
+
+  /** Limits the runs of CIVL of this run with governor, which is
+   * shared with other runs, instead of a governor of its own. */
+  void share(Governor governor) {
+    this.governor = governor;
+    adaptive = false;
+  }
+
+  /** Verifies the schedules, returning the exit code (see verify). */
+  private int execute() throws IOException {
+    time0 = System.nanoTime();
+    progressTime.set(time0);
+    watchdog = new Watchdog(timeout*1000000000L);
+    if (coordinate >= 0) {
+      coordinator = new Coordinator(this, coordinateHost, coordinate,
+                                    timeout*1000000000L);
+      Log.log(Level.PROGRESS, "Coordinating: start workers with -worker="+
+              coordinator.address());
+    }
+    if (adaptive) {
+      governor = new Governor(ncore, ncompleted::get);
+      governor.start();
+    }
+    ScheduleDispenser dispenser = new ScheduleDispenser(this);
+    ScheduleExecutor executor;
+    switch (executorKind) {
+    case "threads":
+      executor = new ThreadExecutor(this, dispenser, ncore);
+      break;
+    case "forkjoin":
+      executor = new ForkJoinExecutor(this, dispenser, ncore);
+      break;
+    default:
+      throw new RuntimeException("unreachable");
+    }
+    try {
+      executor.execute();
+    } catch (InterruptedException e) {
+      fail(new InterruptedIOException("Interrupted"));
+    }
+    if (adaptive)
+      governor.stop();
+    Log.flush(); // the rest is printed directly
+    saveCheckpoint();
+    for (int i=0; i<nslot.get(); i++)
+      new File(tmpDir, "slot_"+i+".cvl").delete();
+    synchronized (children) {
+      for (ChildJVM c : children)
+        c.close();
+    }
+    if (coordinator != null)
+      coordinator.close();
+    if (metrics != null)
+      metrics.close();
+    if (results != null)
+      results.close();
+    if (cache != null)
+      out.println(ncached.get()+" schedule results were found in the cache.");
+    writeShardSummary();
+    long generated = selected != null ? selected.length : sid.get() - firstId;
+    if (!exceeded.isEmpty()) {
+      StringBuilder ids = new StringBuilder();
+      for (Map.Entry<Integer,Outcome> e : exceeded.entrySet())
+        ids.append(ids.length() == 0 ? "" : ", ")
+          .append(e.getKey()+" ("+e.getValue()+")");
+      out.println(exceeded.size()+" schedules exceeded their budgets: "+
+                  ids+".");
+      out.println("Coverage: "+(generated - exceeded.size())+" of "+
+                  generated+" schedules verified ("+
+                  percent(generated - exceeded.size(), generated)+"%).");
+    }
+    if (planner != null)
+      planner.print(out, new int[] { nthread_lo, nstep_lo, npreAdd_lo },
+                    ncore, budget);
+    if (!failures.isEmpty()) {
+      if (failures.size() > 1) {
+        StringBuilder ids = new StringBuilder();
+        for (int id : failures)
+          ids.append(ids.length() == 0 ? "" : ", ").append(id);
+        out.println("Errors detected on "+failures.size()+" schedules: "+
+                    ids+".");
       }
+      out.println("collect: error detected on schedule "+failures.first()+
+                  ".  Exiting.");
+      printTime();
+      errOut.flush();
+      return 2;
+    }
+    if (cancelled) {
+      out.println(generated+" schedules generated.  No errors detected, "+
+                  "but the run was cancelled after "+ncompleted.get()+
+                  " of "+total+" schedules.");
+      printTime();
+      return 3;
+    }
+    if (!exceeded.isEmpty()) {
+      out.println(generated+" schedules generated.  No errors detected, "+
+                  "but "+exceeded.size()+" schedules were not verified.");
+      printTime();
+      errOut.flush();
+      return 3;
     }
-    out.println(sid+" schedules generated.  All tests pass.");
+    out.println(generated+" schedules generated.  All tests pass.");
     printTime();
+    return 0;
+  }
+
+  /** Returns 100*n/total, to 0.1. */
+  static double percent(long n, long total) {
+    return total == 0 ? 100 : Math.floor(1000.0*n/total)/10;
   }
   
+  /**
+   * Does what the command line args, given to parseCommandLine, asks
+   * for: counts the schedules, shows a result, merges shards, or
+   * verifies the schedules.  Returns the exit code of collect.
+   */
+  int run(String[] args) throws IOException {
+    if (count) {
+      makeScheduleIterator();
+      printCount();
+      return 0;
+    }
+    if (show >= 0)
+      return printResult();
+    if (merge) {
+      ArrayList<File> dirs = new ArrayList<>();
+      for (String name : filenames)
+        dirs.add(new File(name));
+      return ShardSummary.merge(dirs, out);
+    }
+    return verify();
+  }
+
   public static void main(String[] args) throws IOException {
+    for (String arg : args) // the client loads nothing more
+      if (arg.startsWith("-connect="))
+        System.exit(Server.connect(arg.substring("-connect=".length()),
+                                   args));
     System.out.println("COLLECT Verifier v0.1");
     AMPVer av = new AMPVer();
     av.parseCommandLine(args);
-    av.makeCoreCommands();
-    av.makeScheduleIterator();
-    av.execute();
+    if (av.worker != null)
+      System.exit(Coordinator.work(av.worker, av.ncore, av.tmpDir));
+    if (av.serve != null) {
+      Server server = new Server(av.serve, av.ncore, av.adaptive);
+      System.exit(server.serve());
+    }
+    if (av.campaign != null) {
+      try {
+        System.exit(new Campaign(av.campaign, args).run());
+      } catch (IOException | InterruptedException e) {
+        System.err.println("collect: "+e.getMessage());
+        System.exit(1);
+      }
+    }
+    System.exit(av.run(args));
   }
 }
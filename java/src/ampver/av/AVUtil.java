@@ -370,6 +370,179 @@ public class AVUtil {
     return true;
   }
 
+  /**
+   * Copies the entries of the ragged array a, row by row, into dst,
+   * starting at index k.  Returns the index following the last entry
+   * written.
+   */
+  public static int flatten(int[][] a, int[] dst, int k) {
+    for (int i=0; i<a.length; i++) {
+      int m = a[i].length;
+      System.arraycopy(a[i], 0, dst, k, m);
+      k += m;
+    }
+    return k;
+  }
+
+  /**
+   * Inverse of flatten: fills in the rows of the ragged array a,
+   * which must already be allocated, from src starting at index k.
+   * Returns the index following the last entry read.
+   */
+  public static int unflatten(int[] src, int k, int[][] a) {
+    for (int i=0; i<a.length; i++) {
+      int m = a[i].length;
+      System.arraycopy(src, k, a[i], 0, m);
+      k += m;
+    }
+    return k;
+  }
+
+  /** Returns a if it has length n, otherwise a new array of length
+   * n.  Used to reuse the rows of a 2d array when their lengths do
+   * not change; the contents of the result are arbitrary. */
+  public static int[] resize(int[] a, int n) {
+    return a != null && a.length == n ? a : new int[n];
+  }
+
+  /** Is a a prefix of b? */
+  public static boolean is_prefix(int[] a, int[] b) {
+    if (a.length > b.length) return false;
+    for (int i=0; i<a.length; i++)
+      if (a[i] != b[i]) return false;
+    return true;
+  }
+
+  // Ranking...
+
+  /**
+   * Returns the binomial coefficient n choose k, or 0 if k<0 or k>n.
+   * Throws ArithmeticException if the result does not fit in a
+   * long.
+   */
+  public static long choose(long n, int k) {
+    if (k < 0 || k > n) return 0;
+    long result = 1;
+    for (int i=0; i<k; i++)
+      result = Math.multiplyExact(result, n-i) / (i+1);
+    return result;
+  }
+
+  /** Returns n factorial. */
+  public static long factorial(int n) {
+    long result = 1;
+    for (int i=2; i<=n; i++)
+      result = Math.multiplyExact(result, i);
+    return result;
+  }
+
+  /** Returns b to the power e, where b^0 is 1 for all b. */
+  public static long power(long b, int e) {
+    long result = 1;
+    for (int i=0; i<e; i++)
+      result = Math.multiplyExact(result, b);
+    return result;
+  }
+
+  /**
+   * Returns the index following the last row of the block of rows
+   * of a that starts at row i.  Consecutive rows i, i+1 are in the
+   * same block iff alike[i].  If alike is null, every block has one
+   * row.
+   */
+  private static int block_end(int n, boolean[] alike, int i) {
+    int j = i+1;
+    if (alike != null)
+      while (j < n && alike[j-1]) j++;
+    return j;
+  }
+
+  /** The value of row a, with digits in 0..b-1, index 0 lowest. */
+  public static long row_value(int b, int[] a) {
+    long x = 0;
+    for (int j=a.length-1; j>=0; j--)
+      x = x*b + a[j];
+    return x;
+  }
+
+  /**
+   * The number of arrays enumerated by nxt_lex_lo_2d_sym(b, a, alike),
+   * starting from all 0s, for arrays with the same row lengths as a.
+   * If alike is null, the number enumerated by nxt_lex_lo_2d(b, a).
+   *
+   * A block of m alike rows of length L is a non-decreasing sequence
+   * of m row values in 0..S-1, where S=b^L, so has C(S+m-1,m)
+   * possibilities.  Blocks are independent.
+   */
+  public static long count_lex_2d_sym(int b, int[][] a, boolean[] alike) {
+    int n = a.length;
+    long result = 1;
+    for (int i=0; i<n; ) {
+      int e = block_end(n, alike, i);
+      long S = power(b, a[i].length);
+      result = Math.multiplyExact(result, choose(S+e-i-1, e-i));
+      i = e;
+    }
+    return result;
+  }
+
+  /**
+   * The position of a in the sequence enumerated by
+   * nxt_lex_lo_2d_sym(b, a, alike), starting from 0.  The blocks
+   * form a mixed-radix number, the last block being most significant.
+   * Within a block the non-decreasing row values x_0<=...<=x_{m-1}
+   * have rank sum C(x_k+k, k+1) (the combinatorial number system).
+   */
+  public static long rank_lex_2d_sym(int b, int[][] a, boolean[] alike) {
+    int n = a.length;
+    long result = 0;
+    for (int e=n; e>0; ) {
+      int i = e-1;
+      if (alike != null)
+        while (i > 0 && alike[i-1]) i--;
+      long S = power(b, a[i].length), r = 0;
+      for (int k=0; k<e-i; k++)
+        r += choose(row_value(b, a[i+k]) + k, k+1);
+      result = result*choose(S+e-i-1, e-i) + r;
+      e = i;
+    }
+    return result;
+  }
+
+  /**
+   * Inverse of rank_lex_2d_sym: sets a, whose rows are already
+   * allocated, to the array of position r in the sequence enumerated
+   * by nxt_lex_lo_2d_sym(b, a, alike).
+   */
+  public static void unrank_lex_2d_sym(int b, long r, int[][] a,
+                                       boolean[] alike) {
+    int n = a.length;
+    for (int i=0; i<n; ) {
+      int e = block_end(n, alike, i);
+      long S = power(b, a[i].length);
+      long radix = choose(S+e-i-1, e-i);
+      long rb = r % radix;
+      r /= radix;
+      for (int k=e-i-1; k>=0; k--) {
+        // find largest z in k..S-1+k with C(z,k+1)<=rb
+        long lo = k, hi = S-1+k;
+        while (lo < hi) {
+          long mid = lo + (hi-lo+1)/2;
+          if (choose(mid, k+1) <= rb) lo = mid; else hi = mid-1;
+        }
+        rb -= choose(lo, k+1);
+        long x = lo - k;
+        int[] row = a[i+k];
+        for (int j=0; j<row.length; j++) {
+          row[j] = (int)(x % b);
+          x /= b;
+        }
+      }
+      i = e;
+    }
+    assert r == 0;
+  }
+
   // Tests...
 
   public static void print(PrintStream out, int[] a) {
@@ -466,6 +639,33 @@ public class AVUtil {
     out.println();
   }
 
+  private static void test_rank_lex_2d_sym(int n) {
+    out.println("Testing rank_lex_2d_sym:");
+    int m = n/2;
+    int[][] a = new int[n][], c = new int[n][];
+    for (int i=0; i<n; i++) {
+      a[i] = new int[i<m ? 2 : 3];
+      c[i] = new int[a[i].length];
+    }
+    boolean[] alike = new boolean[n-1];
+    for (int i=0; i<n-1; i++)
+      alike[i] = i != m-1;
+    for (boolean[] al : new boolean[][] { alike, null }) {
+      for (int i=0; i<n; i++)
+        Arrays.fill(a[i], 0);
+      long r = 0;
+      do {
+        assert rank_lex_2d_sym(3, a, al) == r;
+        unrank_lex_2d_sym(3, r, c, al);
+        assert Arrays.deepEquals(a, c);
+        r++;
+      } while (al == null ? nxt_lex_lo_2d(3, a) : nxt_lex_lo_2d_sym(3, a, al));
+      assert count_lex_2d_sym(3, a, al) == r;
+      out.println(r+" arrays ranked");
+    }
+    out.println();
+  }
+
   private static void test_nxt_lex_hi(int n) {
     int[] a = new int[n];
     int total = 1;
@@ -623,6 +823,7 @@ public class AVUtil {
     test_nxt_partition_hi(4, 6);
     */
     test_nxt_partition_sym_hi(4, 10);
+    test_rank_lex_2d_sym(4);
     out.println("All tests pass.");
   }
 }
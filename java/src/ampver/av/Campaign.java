@@ -0,0 +1,291 @@
+package av;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static av.Log.Level;
+
+/**
+ * A campaign (-campaign=FILE): the runs of AMPVer on a matrix of
+ * implementations (targets) and configurations, in one JVM, so the
+ * CIVL classes are loaded and compiled once, and the cores left idle
+ * by one run are used by another.  The campaign file has lines of
+ * the forms
+ *
+ * <pre>
+ * # a comment
+ * NAME = VALUE...
+ * config NAME ARG...
+ * target NAME[:CONFIG,...] ARG...
+ * </pre>
+ *
+ * The first defines a variable: $(NAME) in later lines is replaced
+ * by its value.  A config is a set of bounds and options; a target
+ * is an implementation, given by its kind, spec, options and source
+ * files, and is run with every config, or only the configs listed
+ * after its name.  A line ending in a backslash is continued on the
+ * next.  Source files whose names are relative are relative to the
+ * directory of the campaign file.
+ *
+ * Target T with config C is run with the arguments of C, then those
+ * of T, then the options on the command line (other than -campaign
+ * and -tmpDir), and its output, the same as collect would print, is
+ * written to T_C.out in the campaign directory (tmpDir, by default a
+ * new directory), with T_C.dir as the tmpDir of the run.  Up to
+ * ncore runs are in progress at once; they share one Governor of
+ * ncore permits to run CIVL (adjusted to the heap with -adaptive), so
+ * a run verifying its last schedules leaves its cores to the others.
+ * Each run enumerates its own schedules, which takes little time
+ * next to verifying them.  At the end, the verdict, number of
+ * schedules and time of each run are printed.
+ */
+public class Campaign {
+
+  /** A run: a target with a config */
+  private static class Run {
+    String name; // TARGET_CONFIG
+    String[] args;
+    AMPVer av;
+    PrintStream out;
+    int code = -1; // exit code of the run, or -1 if not finished
+    double time; // seconds
+  }
+
+  private final static Pattern VARIABLE = Pattern.compile("\\$\\((\\w+)\\)");
+
+  /** The directory of the output of the runs */
+  private File dir;
+
+  /** The runs, in the order of the file: by target, then config */
+  private ArrayList<Run> runs = new ArrayList<>();
+
+  /** Shares the cores among the runs */
+  private Governor governor;
+
+  /** The exit code of collect for a run, in words */
+  static String verdict(int code) {
+    switch (code) {
+    case 0: return "pass";
+    case 1: return "crashed";
+    case 2: return "error";
+    case 3: return "incomplete";
+    default: return "not run";
+    }
+  }
+
+  /** Replaces the variables in line with their values. */
+  private static String expand(String line, Map<String,String> variables,
+                               File file, int lineno) throws IOException {
+    Matcher m = VARIABLE.matcher(line);
+    StringBuffer b = new StringBuffer();
+    while (m.find()) {
+      String value = variables.get(m.group(1));
+      if (value == null)
+        throw new IOException(file+":"+lineno+": undefined variable "+
+                              m.group(1));
+      m.appendReplacement(b, Matcher.quoteReplacement(value));
+    }
+    m.appendTail(b);
+    return b.toString();
+  }
+
+  /**
+   * Reads the campaign in file.  args is the command line of collect;
+   * its options other than -campaign and -tmpDir are given to every
+   * run.
+   */
+  Campaign(File file, String[] args) throws IOException {
+    ArrayList<String> common = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("-tmpDir="))
+        dir = new File(arg.substring("-tmpDir=".length()));
+      else if (!arg.startsWith("-campaign"))
+        common.add(arg);
+    }
+    File base = file.getAbsoluteFile().getParentFile();
+    Map<String,String> variables = new HashMap<>();
+    LinkedHashMap<String,List<String>> configs = new LinkedHashMap<>();
+    ArrayList<String[]> targets = new ArrayList<>(); // name, configs
+    ArrayList<List<String>> targetArgs = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      int lineno = 0;
+      while ((line = in.readLine()) != null) {
+        lineno++;
+        while (line.endsWith("\\")) {
+          String next = in.readLine();
+          lineno++;
+          line = line.substring(0, line.length()-1)+" "+
+            (next == null ? "" : next);
+        }
+        int hash = line.indexOf('#');
+        if (hash >= 0) line = line.substring(0, hash);
+        line = line.trim();
+        if (line.isEmpty()) continue;
+        int eq = line.indexOf('=');
+        if (eq > 0 && line.substring(0, eq).trim().matches("\\w+")) {
+          variables.put(line.substring(0, eq).trim(),
+                        expand(line.substring(eq+1).trim(), variables,
+                               file, lineno));
+          continue;
+        }
+        String[] words = expand(line, variables, file, lineno).split("\\s+");
+        if (words.length < 2 ||
+            !(words[0].equals("config") || words[0].equals("target")))
+          throw new IOException(file+":"+lineno+
+                                ": expected NAME = VALUE, config or target");
+        ArrayList<String> runArgs = new ArrayList<>();
+        for (int i=2; i<words.length; i++) {
+          String word = words[i];
+          if (!word.startsWith("-") && !new File(word).isAbsolute())
+            word = new File(base, word).getPath();
+          runArgs.add(word);
+        }
+        if (words[0].equals("config"))
+          configs.put(words[1], runArgs);
+        else {
+          String[] nameConfigs = words[1].split(":", 2);
+          targets.add(nameConfigs);
+          targetArgs.add(runArgs);
+        }
+      }
+    }
+    if (dir == null)
+      dir = Files.createTempDirectory
+        (FileSystems.getDefault().getPath(""), "AVCAMPAIGN_").toFile();
+    else
+      dir.mkdirs();
+    for (int t=0; t<targets.size(); t++) {
+      String[] target = targets.get(t);
+      List<String> names = target.length > 1 ?
+        Arrays.asList(target[1].split(",")) :
+        new ArrayList<>(configs.keySet());
+      for (String config : names) {
+        if (!configs.containsKey(config))
+          throw new IOException(file+": target "+target[0]+
+                                ": no config "+config);
+        Run run = new Run();
+        run.name = target[0]+"_"+config;
+        ArrayList<String> runArgs = new ArrayList<>(configs.get(config));
+        runArgs.addAll(targetArgs.get(t));
+        runArgs.addAll(common);
+        runArgs.add("-tmpDir="+new File(dir, run.name+".dir"));
+        run.args = runArgs.toArray(new String[0]);
+        runs.add(run);
+      }
+    }
+    if (runs.isEmpty())
+      throw new IOException(file+": no targets");
+  }
+
+  /** Parses the arguments of each run, writing the start of its
+   * output.  An error in the arguments of a run ends collect. */
+  private void parse() throws IOException {
+    for (Run run : runs) {
+      run.out = new PrintStream(new BufferedOutputStream
+                                (new FileOutputStream
+                                 (new File(dir, run.name+".out"))));
+      run.out.println("COLLECT Verifier v0.1");
+      run.av = new AMPVer(run.out);
+      run.av.runName = run.name;
+      run.av.parseCommandLine(run.args);
+    }
+  }
+
+  /** Verifies one run, in the calling thread. */
+  private void execute(Run run) {
+    Log.setOutput(run.out);
+    long start = System.nanoTime();
+    try {
+      run.code = run.av.verify();
+    } catch (Throwable e) {
+      Log.flush();
+      e.printStackTrace(run.out);
+      run.code = 1;
+    } finally {
+      Log.flush();
+      run.out.close();
+      Log.setOutput(null);
+    }
+    run.time = (System.nanoTime() - start)/1e9;
+    Log.log(Level.PROGRESS, "Finished "+run.name+": "+verdict(run.code)+
+            ", "+run.av.total()+" schedules, "+
+            String.format("%.1f", run.time)+" s");
+  }
+
+  /**
+   * Runs the campaign and prints the verdicts.  Returns the exit code
+   * of collect: 2 if an error was detected by some run, 1 if a run
+   * crashed, 3 if some schedules were not verified, otherwise 0.
+   */
+  int run() throws IOException, InterruptedException {
+    parse();
+    long start = System.nanoTime();
+    int ncore = 1;
+    boolean adaptive = false;
+    for (Run run : runs) {
+      ncore = Math.max(ncore, run.av.ncore());
+      adaptive |= run.av.adaptive();
+    }
+    if (adaptive) {
+      governor = new Governor(ncore, () -> {
+          long result = 0;
+          for (Run run : runs)
+            result += run.av.ncompleted();
+          return result;
+        });
+      governor.start();
+    } else
+      governor = new Governor(ncore);
+    for (Run run : runs)
+      run.av.share(governor);
+    System.out.println("Campaign of "+runs.size()+" runs on "+ncore+
+                       " cores, writing to "+dir);
+    ExecutorService pool = Executors.newFixedThreadPool(ncore);
+    ArrayList<Future<?>> futures = new ArrayList<>();
+    for (Run run : runs)
+      futures.add(pool.submit(() -> execute(run)));
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    pool.shutdown();
+    if (adaptive)
+      governor.stop();
+    Log.flush();
+    System.out.println(String.format("%-32s %8s %12s %10s", "run", "verdict",
+                                     "schedules", "time (s)"));
+    int result = 0;
+    for (Run run : runs) {
+      System.out.println(String.format("%-32s %8s %12d %10.1f", run.name,
+                                       verdict(run.code), run.av.total(),
+                                       run.time));
+      if (run.code == 2 || (run.code == 1 && result != 2) ||
+          (run.code == 3 && result == 0))
+        result = run.code;
+    }
+    System.out.println("Time (seconds) = "+
+                       String.format("%.1f", (System.nanoTime()-start)/1e9));
+    return result;
+  }
+}
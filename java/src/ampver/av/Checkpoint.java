@@ -0,0 +1,172 @@
+package av;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A durable record of the progress of a run, so that a run which is
+ * interrupted can be resumed without verifying again the schedules
+ * that have already been verified.  The checkpoint is stored in a
+ * file named "checkpoint" in the temporary directory and is
+ * rewritten every time a schedule is verified.
+ *
+ * The state of the enumeration is given by the ID of the lowest
+ * schedule that has not been verified (next), the cursor of the
+ * schedule iterator positioned at that schedule, and the set of IDs
+ * greater than next of schedules that have been verified (done).  A
+ * resumed run moves its iterator to the cursor and skips the
+ * schedules in done.
+ *
+ * The file is a sequence of lines of the form key=value:
+ *
+ * <pre>
+ * config=kind=set nthread=1..3 ... verify -userIncludePath=...
+ * next=17
+ * cursor=2 3 1 2 1 0 0 1 0 1 0
+ * done=18 20
+ * </pre>
+ *
+ * The cursor line is absent if there is no schedule next, i.e., the
+ * run completed.
+ */
+public class Checkpoint {
+
+  /** Name of the checkpoint file in the temporary directory */
+  public final static String FILENAME = "checkpoint";
+
+  /** Description of the configuration of the run.  A checkpoint can
+   * only be resumed by a run with the same configuration. */
+  String config;
+
+  /** ID of the lowest schedule that has not been verified */
+  int next = 0;
+
+  /** Cursor of the schedule iterator at schedule next, or null if
+   * there is no such schedule */
+  int[] cursor = null;
+
+  /** IDs greater than next of schedules that have been verified */
+  TreeSet<Integer> done = new TreeSet<>();
+
+  /** Cursors of the schedules that have been dispatched but not yet
+   * verified, keyed by schedule ID */
+  private TreeMap<Integer,int[]> pending = new TreeMap<>();
+
+  Checkpoint(String config) {
+    this.config = config;
+  }
+
+  /** Records that the schedule with the given ID, which was produced
+   * by an iterator at the given cursor, has been dispatched. */
+  void dispatch(int id, int[] cursor) {
+    pending.put(id, cursor);
+  }
+
+  /** Records that the schedule with the given ID has been verified. */
+  void finish(int id) {
+    pending.remove(id);
+    done.add(id);
+  }
+
+  /** Recomputes next and cursor.  nextId is the ID of the next schedule
+   * that will be dispatched and nextCursor is the cursor of the
+   * iterator that will produce it (null if there is none). */
+  void update(int nextId, int[] nextCursor) {
+    if (pending.isEmpty()) {
+      next = nextId;
+      cursor = nextCursor;
+    } else {
+      next = pending.firstKey();
+      cursor = pending.get(next);
+    }
+    done.headSet(next).clear();
+  }
+
+  /** Writes this checkpoint to the checkpoint file in directory dir.
+   * The file is replaced atomically, so a crash during the write
+   * leaves the previous checkpoint intact. */
+  void write(File dir) throws FileNotFoundException, IOException {
+    File file = new File(dir, FILENAME);
+    File tmp = new File(dir, FILENAME+".tmp");
+    PrintStream out = new PrintStream(tmp);
+    out.println("config="+config);
+    out.println("next="+next);
+    if (cursor != null) {
+      out.print("cursor=");
+      for (int i=0; i<cursor.length; i++) {
+        if (i>0) out.print(" ");
+        out.print(cursor[i]);
+      }
+      out.println();
+    }
+    out.print("done=");
+    boolean first = true;
+    for (int id : done) {
+      if (first) first = false; else out.print(" ");
+      out.print(id);
+    }
+    out.println();
+    out.close();
+    if (out.checkError())
+      throw new IOException("Could not write "+tmp);
+    Files.move(tmp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int[] ints(String value) {
+    value = value.trim();
+    if (value.isEmpty()) return new int[0];
+    String[] words = value.split(" +");
+    int[] result = new int[words.length];
+    for (int i=0; i<words.length; i++)
+      result[i] = Integer.parseInt(words[i]);
+    return result;
+  }
+
+  /** Reads the checkpoint file in directory dir.  Returns null if
+   * there is no such file. */
+  static Checkpoint read(File dir) throws IOException {
+    File file = new File(dir, FILENAME);
+    if (!file.exists()) return null;
+    List<String> lines = Files.readAllLines(file.toPath());
+    Checkpoint result = new Checkpoint(null);
+    for (String line : lines) {
+      int eqidx = line.indexOf('=');
+      if (eqidx < 0)
+        throw new IOException("Malformed line in "+file+": "+line);
+      String key = line.substring(0, eqidx);
+      String value = line.substring(eqidx+1);
+      try {
+        switch (key) {
+        case "config":
+          result.config = value;
+          break;
+        case "next":
+          result.next = Integer.parseInt(value);
+          break;
+        case "cursor":
+          result.cursor = ints(value);
+          break;
+        case "done":
+          for (int id : ints(value))
+            result.done.add(id);
+          break;
+        default:
+          throw new IOException("Unknown key in "+file+": "+key);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed line in "+file+": "+line);
+      }
+    }
+    if (result.config == null)
+      throw new IOException("No configuration in "+file);
+    return result;
+  }
+}
@@ -0,0 +1,191 @@
+package av;
+import dev.civl.mc.run.IF.UserInterface;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import static av.Watchdog.Outcome;
+
+/**
+ * A long-lived child JVM that runs CIVL on request, so that the runs
+ * of CIVL do not share the heap and garbage collector of AMPVer and a
+ * run that exhausts its heap only takes down its own process.  The
+ * child loads the CIVL classes when it starts and then runs CIVL
+ * once for each request, so the cost of starting a JVM is paid once
+ * for many schedules.  A child is worn out (and should be replaced)
+ * after a number of runs, or when its heap in use after garbage
+ * collection reaches three quarters of its maximum.
+ *
+ * The parent talks to the child over its standard input and output.
+ * A request is the number of arguments followed by the arguments
+ * (writeUTF).  The reply is a status byte (the ordinal of an
+ * Outcome: PASS, FAIL, or MEMOUT if the child ran out of memory),
+ * the length and bytes of the output of CIVL, the heap in use and
+ * maximum heap of the child, and the CPU time, bytes allocated and
+ * peak heap of the run (longs).  The child exits when its input
+ * is closed.  In the child, System.out and System.err are redirected
+ * to the output of the current run, so nothing CIVL prints can
+ * corrupt the replies.
+ */
+public class ChildJVM {
+
+  /** The child process */
+  private Process process;
+
+  /** Requests to the child */
+  private DataOutputStream requests;
+
+  /** Replies from the child */
+  private DataInputStream replies;
+
+  /** Number of runs after which the child is worn out */
+  private int maxRuns;
+
+  /** Number of runs so far */
+  private int nrun = 0;
+
+  /** Heap in use and maximum heap (bytes) of the child after the
+   * last run */
+  private long heapUsed = 0, heapMax = Long.MAX_VALUE;
+
+  /** Has the child died or been killed? */
+  private volatile boolean dead = false;
+
+  /**
+   * Starts a child.  heap is the maximum heap (MB) of the child, or 0
+   * for the default of the JVM.
+   */
+  ChildJVM(int maxRuns, int heap) throws IOException {
+    this.maxRuns = maxRuns;
+    ArrayList<String> command = new ArrayList<>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"),
+                         "java").toString());
+    if (heap > 0)
+      command.add("-Xmx"+heap+"m");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ChildJVM.class.getName());
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    process = builder.start();
+    requests = new DataOutputStream
+      (new BufferedOutputStream(process.getOutputStream()));
+    replies = new DataInputStream
+      (new BufferedInputStream(process.getInputStream()));
+  }
+
+  /**
+   * Runs CIVL in the child with the given arguments, writing its
+   * output to out and the resources it used to usage.  Returns PASS
+   * or FAIL, or MEMOUT if the child ran out of memory or died.  If
+   * the calling thread is stopped (see Watchdog), the child is
+   * killed.
+   */
+  Outcome run(String[] args, PrintStream out, MetricsLog.Usage usage) {
+    try {
+      requests.writeInt(args.length);
+      for (String arg : args)
+        requests.writeUTF(arg);
+      requests.flush();
+      Outcome outcome = Outcome.values()[replies.readByte()];
+      byte[] output = new byte[replies.readInt()];
+      replies.readFully(output);
+      heapUsed = replies.readLong();
+      heapMax = replies.readLong();
+      usage.cpu = replies.readLong();
+      usage.alloc = replies.readLong();
+      usage.peakHeap = replies.readLong();
+      out.write(output);
+      nrun++;
+      return outcome;
+    } catch (IOException e) {
+      out.println("collect: child JVM died: "+e);
+      kill();
+      return Outcome.MEMOUT;
+    } catch (Throwable e) {
+      kill();
+      throw e;
+    }
+  }
+
+  /** Is the child dead, or worn out? */
+  boolean worn() {
+    return dead || nrun >= maxRuns || heapUsed > heapMax / 4 * 3;
+  }
+
+  /** Kills the child at once. */
+  void kill() {
+    dead = true;
+    process.destroyForcibly();
+  }
+
+  /** Closes the input of the child, which makes it exit. */
+  void close() {
+    try {
+      requests.close();
+    } catch (IOException e) {
+      kill();
+    }
+  }
+
+  /** The child: serves requests until its input is closed. */
+  public static void main(String[] args) throws IOException {
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(System.in));
+    DataOutputStream reply = new DataOutputStream
+      (new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream capture = new PrintStream(bytes, true);
+    System.setOut(capture);
+    System.setErr(capture);
+    // load the CIVL classes before the first request:
+    new UserInterface(capture, capture).run("help");
+    bytes.reset();
+    while (true) {
+      String[] command;
+      try {
+        command = new String[in.readInt()];
+      } catch (EOFException e) {
+        break;
+      }
+      for (int i=0; i<command.length; i++)
+        command[i] = in.readUTF();
+      Outcome outcome;
+      MetricsLog.Usage usage = new MetricsLog.Usage();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        pool.resetPeakUsage();
+      try {
+        outcome = usage.measure(() -> new UserInterface(capture, capture)
+                                .run(command) ? Outcome.PASS : Outcome.FAIL);
+      } catch (OutOfMemoryError e) {
+        outcome = Outcome.MEMOUT;
+      }
+      usage.peakHeap = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP)
+          usage.peakHeap += pool.getPeakUsage().getUsed();
+      capture.flush();
+      reply.writeByte(outcome.ordinal());
+      reply.writeInt(bytes.size());
+      bytes.writeTo(reply);
+      bytes.reset();
+      reply.writeLong(Watchdog.liveHeap());
+      reply.writeLong(Runtime.getRuntime().maxMemory());
+      reply.writeLong(usage.cpu);
+      reply.writeLong(usage.alloc);
+      reply.writeLong(usage.peakHeap);
+      reply.flush();
+    }
+  }
+}
@@ -0,0 +1,593 @@
+package av;
+import dev.civl.mc.run.IF.UserInterface;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static av.Log.Level;
+import static av.Watchdog.Outcome;
+
+/**
+ * Runs CIVL on worker processes, on this host or others, for a run
+ * that is the coordinator (-coordinate=[HOST:]PORT).  The coordinator
+ * generates the schedules, records the results and keeps the
+ * checkpoint as any run does; only the runs of CIVL are done by the
+ * workers (collect -worker=HOST:PORT), as they are by a child JVM
+ * with -childJVM.  A worker opens ncore connections to the
+ * coordinator, each of which runs one schedule (or batch, with
+ * -batch) at a time, in the worker's JVM.  Each verification thread
+ * of the coordinator (there are ncore of them, which should be at
+ * least the total of the workers' connections) takes the next
+ * schedule and hands it to an idle connection, so a worker that
+ * finishes early is given more work at once, however skewed the
+ * costs of the schedules are.  Workers may join at any time during
+ * the run, and leave when it ends.
+ *
+ * A worker acknowledges each schedule it is given, and sends a
+ * heartbeat every HEARTBEAT milliseconds while it verifies it.  A
+ * worker whose connection breaks (its process died) or that is silent
+ * for LOST milliseconds (its host is down or unreachable) is lost: all
+ * of its connections are dropped, and its schedule is given to another
+ * connection.  A schedule on which MAX_LOSSES workers are lost after
+ * acknowledging it is counted as a MEMOUT, as one on which a child JVM
+ * dies; a worker found lost before it acknowledged the schedule (it
+ * died while idle) is not charged to the schedule.
+ *
+ * The time budget (-timeout) is enforced by the workers with a
+ * Watchdog of their own; -memout, which requires -childJVM, cannot be
+ * used.  The schedule text is sent to the worker, which writes it to
+ * a slot file of its own, but the other files of the command line of
+ * CIVL (the sources and the driver in the root directory) must be
+ * found by the workers at the same paths as by the coordinator: on
+ * the same host, or on a shared file system.
+ *
+ * Workers are not authenticated, and are sent the command lines of
+ * CIVL and the schedules, so the coordinator listens on the loopback
+ * address unless given the address HOST of a trusted network.  Each
+ * connection is handed to a thread of its own for its handshake.
+ *
+ * Protocol: the worker sends MAGIC and its name (writeUTF); the
+ * coordinator replies with the time budget (nanoseconds, a long).  A
+ * request is the schedule ID, the number of schedules it holds
+ * (ints), the number of arguments of CIVL and the arguments
+ * (writeUTF), the last of which is replaced by the worker's slot
+ * file, and the length and UTF-8 bytes of the schedule text.  The
+ * reply is ACCEPTED, any number of HEARTBEAT bytes, then REPLY, the
+ * ordinal of the Outcome, the length and bytes of the output of CIVL,
+ * and the CPU time and bytes allocated by the run (longs).  A worker
+ * exits when all of its connections are closed.
+ */
+public class Coordinator {
+
+  /** Sent by a worker when it connects */
+  public final static String MAGIC = "collect-worker 1";
+
+  /** Kinds of byte sent by a worker */
+  public final static byte ACCEPTED = 'a', HEARTBEAT = 'h', REPLY = 'r';
+
+  /** Time (milliseconds) between heartbeats of a busy worker */
+  public final static int HEARTBEAT_PERIOD = 1000;
+
+  /** Time (milliseconds) without a word from a busy worker after
+   * which it is lost */
+  public final static int LOST = 10000;
+
+  /** Number of workers lost on one schedule after which it is counted
+   * as a MEMOUT */
+  public final static int MAX_LOSSES = 3;
+
+  /** Time (milliseconds) without a connected worker after which the
+   * run is cancelled */
+  public final static int NO_WORKER = 300000;
+
+  /** Time (milliseconds) between the messages of a run waiting for
+   * workers */
+  public final static int WAITING = 10000;
+
+  /** Time (milliseconds) for which a worker tries to connect to a
+   * coordinator that is not yet listening */
+  public final static int CONNECT_TIME = 60000;
+
+  /** A connection to a worker, which runs one schedule at a time */
+  private static class Connection {
+    Socket socket;
+    DataInputStream in;
+    DataOutputStream out;
+    String name; // HOST:PID#SLOT
+    String worker; // HOST:PID, the worker process
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      in = new DataInputStream
+        (new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream
+        (new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Sends a schedule to the worker, and waits for it to be
+     * accepted (see Coordinator.run). */
+    void send(int id, String[] args, String text, int scale)
+      throws IOException {
+      out.writeInt(id);
+      out.writeInt(scale);
+      out.writeInt(args.length);
+      for (String arg : args)
+        out.writeUTF(arg);
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.flush();
+      byte kind = in.readByte();
+      if (kind != ACCEPTED)
+        throw new IOException("unexpected reply "+kind);
+    }
+
+    /** Waits for the result of the schedule sent (see
+     * Coordinator.run). */
+    Outcome receive(PrintStream outStream, MetricsLog.Usage usage)
+      throws IOException {
+      byte kind;
+      while ((kind = in.readByte()) == HEARTBEAT)
+        ;
+      if (kind != REPLY)
+        throw new IOException("unexpected reply "+kind);
+      Outcome outcome = Outcome.values()[in.readByte()];
+      byte[] output = new byte[in.readInt()];
+      in.readFully(output);
+      usage.cpu = in.readLong();
+      usage.alloc = in.readLong();
+      outStream.write(output);
+      return outcome;
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // closed anyway
+      }
+    }
+  }
+
+  /** The run */
+  private final AMPVer av;
+
+  private final ServerSocket server;
+
+  /** Budget of time (nanoseconds), or 0 */
+  private final long timeout;
+
+  /** The connections not running a schedule */
+  private final LinkedBlockingQueue<Connection> idle =
+    new LinkedBlockingQueue<>();
+
+  /** All connections, idle or not */
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean closed = false;
+
+  /** When (milliseconds) the last worker was lost, or the run started
+   * if none has joined */
+  private final AtomicLong noWorkerSince =
+    new AtomicLong(System.currentTimeMillis());
+
+  /** When (milliseconds) a wait for workers was last reported */
+  private final AtomicLong waitReported = new AtomicLong(0);
+
+  /**
+   * Listens for workers of run av on port (any free port if 0) of
+   * address host (the loopback address if null), which are given the
+   * budget timeout (nanoseconds).
+   */
+  Coordinator(AMPVer av, String host, int port, long timeout)
+    throws IOException {
+    this.av = av;
+    this.timeout = timeout;
+    server = new ServerSocket(port, 50, host == null ?
+                              InetAddress.getLoopbackAddress() :
+                              InetAddress.getByName(host));
+    Thread t = new Thread(this::accept, "coordinator");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** The address, HOST:PORT, at which workers connect */
+  String address() {
+    InetAddress address = server.getInetAddress();
+    String host;
+    if (address.isLoopbackAddress())
+      host = "localhost";
+    else if (address.isAnyLocalAddress())
+      try {
+        host = InetAddress.getLocalHost().getHostName();
+      } catch (IOException e) {
+        host = "localhost";
+      }
+    else
+      host = address.getHostName();
+    return host+":"+server.getLocalPort();
+  }
+
+  /**
+   * Accepts the connections of workers until closed, each of which
+   * is handed to a thread of its own for its handshake, so that a
+   * silent peer does not hold up the others.
+   */
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket socket = server.accept();
+        Thread t = new Thread(() -> join(socket), "handshake "+
+                              socket.getRemoteSocketAddress());
+        t.setDaemon(true);
+        t.start();
+      } catch (IOException e) {
+        if (!closed)
+          Log.log(Level.RESULT, "Coordinator: "+e.getMessage());
+      }
+    }
+  }
+
+  /** Makes the connection on socket, from a worker, idle. */
+  private void join(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(LOST);
+      Connection c = new Connection(socket);
+      if (!MAGIC.equals(c.in.readUTF()))
+        throw new IOException("not a worker: "+socket.getInetAddress());
+      c.name = c.in.readUTF();
+      int hash = c.name.lastIndexOf('#');
+      c.worker = hash >= 0 ? c.name.substring(0, hash) : c.name;
+      c.out.writeLong(timeout);
+      c.out.flush();
+      synchronized (this) {
+        if (closed)
+          throw new IOException("closed");
+        connections.add(c);
+        idle.add(c);
+      }
+      Log.log(Level.INFO, "Worker "+c.name+" joined");
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException e1) {
+        // closed anyway
+      }
+      if (!closed)
+        Log.log(Level.RESULT, "Coordinator: "+e.getMessage());
+    }
+  }
+
+  /**
+   * Takes an idle connection, waiting for one.  Returns null if the
+   * run is cancelled first, or if no worker is connected for
+   * NO_WORKER milliseconds, which cancels the run.
+   */
+  private Connection take() {
+    boolean interrupted = false;
+    try {
+      while (!av.cancelled()) {
+        try {
+          Connection c = idle.poll(HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+          if (c != null)
+            return c;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        if (!connections.isEmpty())
+          continue; // all busy
+        long now = System.currentTimeMillis();
+        if (now - noWorkerSince.get() >= NO_WORKER) {
+          av.cancel("no worker was connected for "+NO_WORKER/1000+" s");
+          return null;
+        }
+        long reported = waitReported.get();
+        if (now - reported >= WAITING &&
+            waitReported.compareAndSet(reported, now))
+          Log.log(Level.PROGRESS, "Waiting for workers: start them with "+
+                  "-worker="+address());
+      }
+      return null;
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Runs CIVL with the given arguments on the schedule with the given
+   * ID and text, which holds scale schedules, on the next idle worker,
+   * writing its output to out and the resources it used to usage.  If
+   * the worker is lost, the schedule is run on another.  Returns null
+   * if the schedule was not run because the run was cancelled while it
+   * waited for a worker (see take).
+   */
+  Outcome run(int id, String[] args, String text, int scale,
+              PrintStream out, MetricsLog.Usage usage) {
+    int losses = 0;
+    while (true) {
+      Connection c = take();
+      if (c == null)
+        return null;
+      try {
+        c.send(id, args, text, scale);
+      } catch (IOException e) {
+        // the worker was lost while c was idle: the schedule was not
+        // started, so the loss is not charged to it
+        drop(c, e);
+        continue;
+      }
+      try {
+        Outcome outcome = c.receive(out, usage);
+        idle.add(c);
+        return outcome;
+      } catch (IOException e) {
+        drop(c, e);
+        if (++losses == MAX_LOSSES) {
+          out.println("collect: "+losses+" workers were lost on this "+
+                      "schedule, the last: "+c.worker+": "+e);
+          return Outcome.MEMOUT;
+        }
+        Log.log(Level.PROGRESS, "Reassigning schedule "+id+" of lost worker "+
+                c.worker);
+      }
+    }
+  }
+
+  /** Closes and forgets all connections of the worker of c, which is
+   * lost because of e. */
+  private synchronized void drop(Connection c, IOException e) {
+    boolean found = false;
+    for (Connection d : connections) {
+      if (d.worker.equals(c.worker)) {
+        d.close();
+        connections.remove(d);
+        idle.remove(d);
+        found = true;
+      }
+    }
+    if (found)
+      Log.log(Level.PROGRESS, "Lost worker "+c.worker+" ("+e+")");
+    if (connections.isEmpty())
+      noWorkerSince.set(System.currentTimeMillis());
+  }
+
+  /** Number of connections of workers */
+  int nconnection() {
+    return connections.size();
+  }
+
+  /** Stops listening and closes the connections, so the workers
+   * exit. */
+  synchronized void close() {
+    closed = true;
+    try {
+      server.close();
+    } catch (IOException e) {
+      // closed anyway
+    }
+    for (Connection c : connections)
+      c.close();
+  }
+
+  /** A connection of a worker to the coordinator */
+  private static class Slot {
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    final String name;
+    final File slotFile;
+    /** Is a schedule being verified?  Guarded by out. */
+    boolean busy = false;
+
+    /** Connects to the coordinator at host:port, trying for
+     * CONNECT_TIME, and sends the greeting. */
+    Slot(String host, int port, String name, File slotFile)
+      throws IOException {
+      this.name = name;
+      this.slotFile = slotFile;
+      long deadline = System.currentTimeMillis() + CONNECT_TIME;
+      Socket s;
+      while (true) {
+        try {
+          s = new Socket(host, port);
+          break;
+        } catch (IOException e) {
+          if (System.currentTimeMillis() >= deadline)
+            throw e;
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e1) {
+            throw e;
+          }
+        }
+      }
+      socket = s;
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream
+        (new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream
+        (new BufferedOutputStream(socket.getOutputStream()));
+      out.writeUTF(MAGIC);
+      out.writeUTF(name);
+      out.flush();
+    }
+
+    /** Sends a heartbeat every HEARTBEAT_PERIOD while busy, until
+     * the connection is closed. */
+    void heartbeat() {
+      try {
+        while (!socket.isClosed()) {
+          Thread.sleep(HEARTBEAT_PERIOD);
+          synchronized (out) {
+            if (busy) {
+              out.writeByte(HEARTBEAT);
+              out.flush();
+            }
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        // the connection is closed
+      }
+    }
+
+    /** Serves requests with watchdog until the coordinator closes
+     * the connection. */
+    void serve(Watchdog watchdog) throws IOException {
+      Thread t = new Thread(this::heartbeat, "heartbeat "+name);
+      t.setDaemon(true);
+      t.start();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintStream capture = new PrintStream(bytes, true);
+      try {
+        while (true) {
+          int id;
+          try {
+            id = in.readInt();
+          } catch (EOFException e) {
+            return;
+          }
+          int scale = in.readInt();
+          String[] args = new String[in.readInt()];
+          for (int i=0; i<args.length; i++)
+            args[i] = in.readUTF();
+          byte[] text = new byte[in.readInt()];
+          in.readFully(text);
+          Files.write(slotFile.toPath(), text);
+          args[args.length-1] = slotFile.toString();
+          Log.log(Level.INFO, "Worker "+name+" working on schedule "+id);
+          synchronized (out) {
+            busy = true;
+            out.writeByte(ACCEPTED);
+            out.flush();
+          }
+          bytes.reset();
+          MetricsLog.Usage usage = new MetricsLog.Usage();
+          Outcome outcome = watchdog.run
+            (() -> usage.measure(() -> new UserInterface(capture, capture)
+                                 .run(args) ? Outcome.PASS : Outcome.FAIL),
+             scale, null);
+          capture.flush();
+          synchronized (out) {
+            busy = false;
+            out.writeByte(REPLY);
+            out.writeByte(outcome.ordinal());
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.writeLong(usage.cpu);
+            out.writeLong(usage.alloc);
+            out.flush();
+          }
+        }
+      } finally {
+        socket.close();
+        slotFile.delete();
+      }
+    }
+  }
+
+  /**
+   * The worker (-worker=HOST:PORT): opens ncore connections to the
+   * coordinator at address and runs CIVL for each until the
+   * coordinator closes it.  The slot files are written in tmpDir,
+   * or, if it is null, a new directory in the working directory,
+   * deleted at the end.
+   * Returns the exit code of collect.
+   */
+  static int work(String address, int ncore, File tmpDir) {
+    int colon = address.lastIndexOf(':');
+    String host;
+    int port;
+    try {
+      host = colon > 0 ? address.substring(0, colon) : "localhost";
+      port = Integer.parseInt(address.substring(colon+1));
+    } catch (NumberFormatException e) {
+      System.err.println("collect: -worker expects HOST:PORT, not "+address);
+      return 1;
+    }
+    String name;
+    try {
+      name = InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      name = "localhost";
+    }
+    name += ":"+ProcessHandle.current().pid();
+    Slot[] slots = new Slot[ncore];
+    Watchdog watchdog;
+    File dir = tmpDir;
+    try {
+      if (dir == null)
+        dir = Files.createTempDirectory
+          (FileSystems.getDefault().getPath(""), "AVWORKER_").toFile();
+      else
+        dir.mkdirs();
+      dir = dir.getAbsoluteFile(); // named in the output of CIVL
+      // the first connection gets the budget, then the others connect:
+      for (int i=0; i<ncore; i++) {
+        slots[i] = new Slot(host, port, name+"#"+i,
+                            new File(dir, "slot_"+i+".cvl"));
+        if (i == 0)
+          System.out.println("Worker "+name+" connected to "+host+":"+port+
+                             " with "+ncore+" threads");
+      }
+      watchdog = new Watchdog(slots[0].in.readLong());
+      for (int i=1; i<ncore; i++)
+        slots[i].in.readLong();
+    } catch (IOException e) {
+      System.err.println("collect: could not connect to coordinator "+
+                         host+":"+port+": "+e);
+      for (Slot slot : slots)
+        if (slot != null)
+          try {
+            slot.socket.close();
+          } catch (IOException e1) {
+            // closed anyway
+          }
+      if (tmpDir == null && dir != null)
+        dir.delete();
+      return 1;
+    }
+    Thread[] threads = new Thread[ncore];
+    for (int i=0; i<ncore; i++) {
+      Slot slot = slots[i];
+      threads[i] = new Thread(() -> {
+          try {
+            slot.serve(watchdog);
+          } catch (IOException e) {
+            Log.log(Level.RESULT, "Worker "+slot.name+": "+e);
+          }
+        }, "worker "+i);
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    if (tmpDir == null)
+      dir.delete();
+    Log.flush();
+    System.out.println("Worker "+name+": the coordinator closed the "+
+                       "connections.  Exiting.");
+    return 0;
+  }
+}
@@ -0,0 +1,56 @@
+package av;
+import static av.Step.Op;
+
+/**
+ * Estimates of the relative cost of verifying a schedule.  Only
+ * ratios between estimates are meaningful.
+ *
+ * For each execution of the threads, the driver checks the results
+ * against every sequential ordering of the steps that respects the
+ * program order of each thread.  There are nstep!/prod(nsteps[i]!)
+ * such orderings (perm_calc_num in perm.c), and each is replayed on
+ * the oracle after the pre-adds.  This is the dominant term that can
+ * be computed without running CIVL.  It is multiplied by the number
+ * of steps, weighted by operation (stepCost).
+ */
+public class CostModel {
+
+  /** Returns nstep!/prod(partition[i]!), where nstep is the sum of
+   * the partition, as a double. */
+  static double interleavings(int[] partition) {
+    double result = 1;
+    int n = 0;
+    for (int p : partition) {
+      for (int j=1; j<=p; j++)
+        result = result * (n+j) / j;
+      n += p;
+    }
+    return result;
+  }
+
+  /** Returns the relative cost of a step with operation op.  A
+   * CONTAINS only reads the collection, so the threads and the oracle
+   * reach fewer distinct states than with an ADD or REMOVE. */
+  static double stepCost(Op op) {
+    return op == Op.CONTAINS ? 0.5 : 1;
+  }
+
+  /** Returns the estimated cost of sched. */
+  static double scheduleCost(Schedule sched) {
+    double steps = sched.npreAdd * stepCost(Op.ADD);
+    for (int k=sched.npreAdd; k<sched.code.length; k++)
+      steps += stepCost(Step.op(sched.code[k]));
+    return interleavings(sched.partition()) * steps;
+  }
+
+  /** Returns the estimated cost of each schedule in stratum, which is
+   * an element of ScheduleIterator.strata().  This is the greatest
+   * scheduleCost of the schedules in the stratum, that of one with no
+   * CONTAINS. */
+  static double stratumCost(int[] stratum) {
+    int nthread = stratum[0], nstep = stratum[1], npreAdd = stratum[2];
+    int[] partition = new int[nthread];
+    System.arraycopy(stratum, 3, partition, 0, nthread);
+    return interleavings(partition) * (npreAdd + nstep);
+  }
+}
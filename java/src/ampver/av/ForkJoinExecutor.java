@@ -0,0 +1,114 @@
+package av;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An executor in which the three stages run in different threads, so
+ * that the verification threads never wait on generation or file
+ * I/O.  The calling thread generates schedules.  Each schedule file
+ * is written by a thread of a separate I/O pool, which then submits
+ * the verification task to a work-stealing ForkJoinPool with ncore
+ * threads.  Any idle verification thread steals the next waiting
+ * task, so no thread is idle while a schedule is ready to verify.
+ *
+ * The number of schedules in the pipeline (generated but not
+ * verified) is bounded by a small multiple of ncore, so generation
+ * runs only slightly ahead of verification.
+ *
+ * An exception thrown by a stage cancels the run, and is thrown again
+ * by execute once the schedules in progress are finished.
+ */
+public class ForkJoinExecutor implements ScheduleExecutor {
+
+  private AMPVer av;
+
+  private ScheduleDispenser dispenser;
+
+  private int ncore;
+
+  /** Bounds the number of schedules in the pipeline */
+  private Semaphore window;
+
+  /** Used to wait for all schedules to finish */
+  private Phaser phaser = new Phaser(1);
+
+  /** The first exception thrown by a stage, or null */
+  private AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  ForkJoinExecutor(AMPVer av, ScheduleDispenser dispenser, int ncore) {
+    this.av = av;
+    this.dispenser = dispenser;
+    this.ncore = ncore;
+    this.window = new Semaphore(2*ncore);
+  }
+
+  /** Index of the current verification thread in its pool */
+  private static int workerIndex() {
+    return ((ForkJoinWorkerThread)Thread.currentThread()).getPoolIndex();
+  }
+
+  private void done() {
+    window.release();
+    phaser.arriveAndDeregister();
+  }
+
+  /** Records e, thrown by a stage for sched, and cancels the run. */
+  private void fail(Schedule sched, Throwable e) {
+    if (failure.compareAndSet(null, e))
+      av.cancel("schedule "+sched.id+": "+e);
+  }
+
+  public void execute() throws InterruptedException {
+    ForkJoinPool verifiers = new ForkJoinPool(ncore);
+    ExecutorService emitters = Executors.newCachedThreadPool();
+    ArrayList<Schedule> chunk = new ArrayList<>();
+    while (dispenser.claim(ncore, chunk) > 0) {
+      for (Schedule sched : chunk)
+        submit(sched, emitters, verifiers);
+      chunk.clear();
+    }
+    phaser.arriveAndAwaitAdvance();
+    emitters.shutdown();
+    verifiers.shutdown();
+    Throwable e = failure.get();
+    if (e instanceof Error)
+      throw (Error)e;
+    if (e != null)
+      throw (RuntimeException)e;
+  }
+
+  /** Sends sched through the emission and verification stages. */
+  private void submit(Schedule sched, ExecutorService emitters,
+                      ForkJoinPool verifiers) throws InterruptedException {
+    window.acquire();
+    phaser.register();
+    emitters.execute(() -> {
+        boolean verify = false;
+        try {
+          verify = av.emitSchedule(sched);
+        } catch (RuntimeException | Error e) {
+          fail(sched, e);
+        } finally {
+          if (!verify) done();
+        }
+        if (verify) {
+          verifiers.execute(() -> {
+              try {
+                av.printTask(workerIndex(), sched);
+                av.verifySchedule(sched);
+              } catch (RuntimeException | Error e) {
+                fail(sched, e);
+              } finally {
+                done();
+              }
+            });
+        }
+      });
+  }
+}
@@ -0,0 +1,276 @@
+package av;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import static av.Log.Level;
+
+/**
+ * Adjusts the number of runs of CIVL in progress at once (-adaptive)
+ * to the memory and throughput of the JVM, between 1 and the number
+ * of verification threads.  A verification thread takes a permit
+ * before running CIVL and returns it after; when no permit is free,
+ * it waits.
+ *
+ * Every PERIOD milliseconds the governor measures the heap in use
+ * after garbage collection (as a fraction of the maximum heap), the
+ * fraction of the time spent collecting garbage, and the number of
+ * schedules completed per second.  Under memory pressure (the heap
+ * is more than HEAP_HIGH full or more than GC_HIGH of the time is
+ * spent in GC) the limit is reduced by a quarter, and is not raised
+ * again for HOLD periods.  When there is headroom (less than HEAP_LOW
+ * and GC_LOW), and threads have been waiting for permits, the limit
+ * is raised by one; if the throughput of the next period is not
+ * higher by at least GAIN, the raise is undone and the limit held.
+ *
+ * A run that ran out of memory halves the limit at once.  It is then
+ * retried (see AMPVer.verifySchedule), the last time alone: an
+ * exclusive permit is only given when no other run is in progress,
+ * and no other permit is given while it is held or waited for, so the
+ * runs in progress drain and the retry is not starved.  A governor
+ * that is not adaptive (the pool of cores of a campaign or daemon
+ * without -adaptive) is a plain semaphore: its limit is never lowered,
+ * and its runs are not retried.
+ *
+ * When CIVL runs in child JVMs, the heap of this JVM says little
+ * about their memory, so the limit is driven by the throughput and by
+ * the children that run out of memory.
+ */
+public class Governor {
+
+  /** Time (milliseconds) between adjustments of the limit */
+  public final static long PERIOD = 2000;
+
+  /** Fraction of the maximum heap in use after GC above which, or
+   * fraction of the time in GC above which, the limit is reduced */
+  public final static double HEAP_HIGH = 0.75, GC_HIGH = 0.3;
+
+  /** Fractions below which the limit may be raised */
+  public final static double HEAP_LOW = 0.5, GC_LOW = 0.15;
+
+  /** Relative gain in throughput for which a raise is kept */
+  public final static double GAIN = 0.05;
+
+  /** Number of periods for which the limit is not raised after it
+   * is reduced, or after a raise that did not pay */
+  public final static int HOLD = 5;
+
+  /** Number of times a run that ran out of memory is retried */
+  public final static int RETRIES = 2;
+
+  /** The greatest limit: the number of verification threads */
+  private final int max;
+
+  /** Number of runs allowed at once */
+  private int limit;
+
+  /** Number of runs in progress (permits taken) */
+  private int running = 0;
+
+  /** Is an exclusive permit taken? */
+  private boolean exclusive = false;
+
+  /** Number of threads waiting for an exclusive permit */
+  private int pendingExclusive = 0;
+
+  /** Has a thread waited for a permit since the last adjustment? */
+  private boolean waited = false;
+
+  /** Number of periods before the limit may be raised */
+  private int hold = 0;
+
+  /** Throughput (schedules/s) of the period before the last raise,
+   * or -1 if the last adjustment was not a raise */
+  private double rateBeforeRaise = -1;
+
+  /** Number of schedules completed so far, or null if the limit is
+   * not adjusted */
+  private final LongSupplier completed;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition free = lock.newCondition();
+
+  private Thread thread = null;
+
+  private volatile boolean stopped = false;
+
+  /**
+   * A governor allowing between 1 and max runs at once, starting
+   * with half of max.  completed gives the number of schedules
+   * completed so far.
+   */
+  Governor(int max, LongSupplier completed) {
+    this.max = max;
+    this.limit = Math.max(1, max/2);
+    this.completed = completed;
+  }
+
+  /**
+   * A governor allowing limit runs at once, which is not adjusted
+   * (start is not called): the pool of cores shared by the runs of a
+   * campaign (see Campaign).
+   */
+  Governor(int limit) {
+    this.max = limit;
+    this.limit = limit;
+    this.completed = null;
+  }
+
+  /** Is the limit adjusted to the memory and throughput? */
+  boolean adaptive() {
+    return completed != null;
+  }
+
+  /** Number of runs allowed at once */
+  int limit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Takes a permit, waiting until one is free.  An exclusive permit
+   * is only taken when no other is; a shared permit is not taken
+   * while an exclusive one is waited for. */
+  void acquire(boolean alone) {
+    lock.lock();
+    try {
+      if (alone) {
+        pendingExclusive++;
+        try {
+          while (exclusive || running > 0) {
+            waited = true;
+            free.awaitUninterruptibly();
+          }
+        } finally {
+          pendingExclusive--;
+        }
+      } else {
+        while (exclusive || pendingExclusive > 0 || running >= limit) {
+          waited = true;
+          free.awaitUninterruptibly();
+        }
+      }
+      running++;
+      exclusive = alone;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns a permit taken by acquire. */
+  void release() {
+    lock.lock();
+    try {
+      running--;
+      exclusive = false;
+      free.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Called when a run has run out of memory: halves the limit, if
+   * adaptive. */
+  void outOfMemory() {
+    if (!adaptive())
+      return;
+    lock.lock();
+    try {
+      setLimit(Math.max(1, limit/2), "a schedule ran out of memory");
+      hold = HOLD;
+      rateBeforeRaise = -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Sets the limit, logging the change and why.  Holds lock. */
+  private void setLimit(int newLimit, String why) {
+    if (newLimit == limit) return;
+    Log.log(Level.PROGRESS, "Concurrency "+limit+" -> "+newLimit+": "+why);
+    limit = newLimit;
+    free.signalAll();
+  }
+
+  /** Total time (milliseconds) spent in garbage collection so far */
+  private static long gcTime() {
+    long result = 0;
+    for (GarbageCollectorMXBean gc :
+           ManagementFactory.getGarbageCollectorMXBeans())
+      result += Math.max(0, gc.getCollectionTime());
+    return result;
+  }
+
+  /**
+   * Adjusts the limit after a period in which heap of the maximum
+   * heap was in use after GC, gc of the time was spent in GC, and
+   * rate schedules were completed per second.
+   */
+  private void adjust(double heap, double gc, double rate) {
+    String state = String.format("heap %.0f%% full, %.0f%% of time in GC, "+
+                                 "%.1f schedules/s", 100*heap, 100*gc, rate);
+    lock.lock();
+    try {
+      if (heap > HEAP_HIGH || gc > GC_HIGH) {
+        setLimit(Math.max(1, limit - Math.max(1, limit/4)), state);
+        hold = HOLD;
+        rateBeforeRaise = -1;
+      } else if (rateBeforeRaise >= 0 && rate < rateBeforeRaise*(1+GAIN)) {
+        setLimit(limit-1, state+", no gain");
+        hold = HOLD;
+        rateBeforeRaise = -1;
+      } else if (hold > 0) {
+        hold--;
+        rateBeforeRaise = -1;
+      } else if (heap < HEAP_LOW && gc < GC_LOW && waited && limit < max) {
+        rateBeforeRaise = rate;
+        setLimit(limit+1, state);
+      } else
+        rateBeforeRaise = -1;
+      waited = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Measures and adjusts every PERIOD until stopped. */
+  private void watch() {
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    long time0 = System.nanoTime(), gc0 = gcTime();
+    long done0 = completed.getAsLong();
+    while (!stopped) {
+      try {
+        Thread.sleep(PERIOD);
+      } catch (InterruptedException e) {
+        break;
+      }
+      long time = System.nanoTime(), gc = gcTime();
+      long done = completed.getAsLong();
+      double elapsed = (time - time0)/1e9;
+      adjust((double)Watchdog.liveHeap()/maxHeap,
+             (gc - gc0)/1e3/elapsed, (done - done0)/elapsed);
+      time0 = time;
+      gc0 = gc;
+      done0 = done;
+    }
+  }
+
+  /** Starts adjusting the limit, in a daemon thread. */
+  void start() {
+    thread = new Thread(this::watch, "governor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stops adjusting the limit. */
+  void stop() {
+    stopped = true;
+    if (thread != null)
+      thread.interrupt();
+  }
+}
@@ -0,0 +1,113 @@
+package av;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An iterator over the schedules with IDs lo..hi-1 of a
+ * ScheduleIndex, most expensive first, as estimated by CostModel
+ * (longest processing time first).  The schedule iterators produce
+ * the schedules with the most threads and steps last, so in natural
+ * order they set the length of the end of a run on many cores; in
+ * this order they are started first and the cheap schedules fill in
+ * around them.
+ *
+ * The strata are enumerated in decreasing order of
+ * CostModel.stratumCost.  Within a stratum, the schedules are read
+ * LOOKAHEAD at a time and each group is returned in decreasing order
+ * of CostModel.scheduleCost, which also depends on the operations.
+ * The schedules returned have their id and cursor fields set; the
+ * IDs are those of the natural order.
+ */
+public class LPTScheduleIterator implements ScheduleIterator {
+
+  /** Number of schedules sorted together within a stratum */
+  public final static int LOOKAHEAD = 256;
+
+  private ScheduleIndex index;
+
+  /** The strata with schedules in lo..hi-1, in the order in which
+   * they are enumerated */
+  private List<Integer> order = new ArrayList<>();
+
+  /** ID of the first schedule of each stratum */
+  private long[] first;
+
+  private long lo, hi;
+
+  /** Index in order of the next stratum to enumerate */
+  private int next = 0;
+
+  /** Iterator over the stratum being enumerated, or null */
+  private StratifiedScheduleIterator current = null;
+
+  /** ID of the next schedule of current, and one more than the ID of
+   * the last schedule to take from it */
+  private long currentId, currentEnd;
+
+  /** Schedules read from current but not yet returned, in order */
+  private ArrayDeque<Schedule> ready = new ArrayDeque<>();
+
+  LPTScheduleIterator(ScheduleIndex index, long lo, long hi) {
+    this.index = index;
+    this.lo = lo;
+    this.hi = hi;
+    int n = index.nstrata();
+    first = new long[n];
+    double[] cost = new double[n];
+    long id = 0;
+    for (int k=0; k<n; k++) {
+      first[k] = id;
+      id += index.count(k);
+      cost[k] = CostModel.stratumCost(index.stratum(k));
+      if (first[k] < hi && id > lo && id > first[k])
+        order.add(k);
+    }
+    // stable, so strata of equal cost stay in natural order:
+    order.sort(Comparator.comparingDouble(k -> -cost[k]));
+  }
+
+  /** Makes ready nonempty, unless there are no more schedules. */
+  private void fill() {
+    while (ready.isEmpty()) {
+      if (current == null || currentId >= currentEnd) {
+        if (next >= order.size()) return;
+        int k = order.get(next++);
+        currentId = Math.max(lo, first[k]);
+        currentEnd = Math.min(hi, first[k] + index.count(k));
+        current = index.seek(currentId);
+        continue;
+      }
+      ArrayList<Schedule> group = new ArrayList<>();
+      while (group.size() < LOOKAHEAD && currentId < currentEnd) {
+        int[] cursor = current.getCursor();
+        Schedule sched = current.next();
+        sched.id = (int)currentId++;
+        sched.cursor = cursor;
+        group.add(sched);
+      }
+      group.sort(Comparator.comparingDouble
+                 (s -> -CostModel.scheduleCost(s)));
+      ready.addAll(group);
+    }
+  }
+
+  public boolean hasNext() {
+    fill();
+    return !ready.isEmpty();
+  }
+
+  public Schedule next() {
+    fill();
+    return ready.poll();
+  }
+
+  /** Returns the cursor of the natural iterator at the next
+   * schedule, or null if there is none. */
+  public int[] getCursor() {
+    fill();
+    Schedule sched = ready.peek();
+    return sched == null ? null : sched.cursor;
+  }
+}
@@ -0,0 +1,248 @@
+package av;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages printed while schedules are verified, at a level of
+ * verbosity, written to standard output by a thread of their own.
+ *
+ * A verification thread formats a message in a buffer of its own (a
+ * sink, which may hold several lines that must not be interleaved
+ * with those of other threads), then puts the text in a ring buffer
+ * of CAPACITY entries.  The writer thread takes all entries from the
+ * ring at once and writes them with one buffered write, flushing
+ * standard output only when the ring is empty.  So the verification
+ * threads never wait for standard output, or for each other while
+ * formatting; they only wait if the ring is full.
+ *
+ * Messages are lost if the JVM exits while they are in the ring, so
+ * flush must be called before System.exit, and before printing to
+ * standard output directly once messages have been logged.
+ *
+ * A thread may send its messages, and those of the threads it then
+ * starts, elsewhere than standard output with setOutput, at a level
+ * of their own; the runs of a campaign (see Campaign) each print to a
+ * file of their own, and the jobs of a daemon (see Server) to their
+ * clients.
+ */
+public class Log {
+
+  /** Level of a message, from always printed to most verbose */
+  public static enum Level {
+    RESULT, // errors, schedules that exceed their budgets, the verdict
+    PROGRESS, // periodic progress reports
+    INFO, // one line for each schedule: dispatched, found in cache, ...
+    TRACE // the steps of each schedule, workers starting and stopping
+  };
+
+  /** Number of messages the ring buffer holds */
+  public final static int CAPACITY = 1024;
+
+  /** Messages of this level or less are printed. */
+  private static volatile Level level = Level.PROGRESS;
+
+  /** The ring buffer: count entries starting at head */
+  private final static String[] ring = new String[CAPACITY];
+
+  /** The stream to which each entry of the ring is written, or null
+   * for standard output */
+  private final static PrintStream[] dests = new PrintStream[CAPACITY];
+
+  private static int head = 0, count = 0;
+
+  /** Is the writer waiting for messages, having written all? */
+  private static boolean idle = true;
+
+  private final static ReentrantLock lock = new ReentrantLock();
+
+  private final static Condition notEmpty = lock.newCondition();
+
+  private final static Condition notFull = lock.newCondition();
+
+  private final static Condition drained = lock.newCondition();
+
+  /** The writer thread, started with the first message */
+  private static Thread writer = null;
+
+  /** The buffer in which a thread formats a message */
+  private static class Sink {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream stream = new PrintStream(bytes);
+  }
+
+  private final static ThreadLocal<Sink> sinks =
+    ThreadLocal.withInitial(Sink::new);
+
+  /** A stream other than standard output, and the level of the
+   * messages written to it */
+  static class Output {
+    final PrintStream stream;
+    volatile Level level;
+
+    Output(PrintStream stream, Level level) {
+      this.stream = stream;
+      this.level = level;
+    }
+  }
+
+  /** Where the messages of a thread are written, or null for
+   * standard output, inherited by the threads it starts */
+  private final static InheritableThreadLocal<Output> output =
+    new InheritableThreadLocal<>();
+
+  /** Writes the messages of the calling thread, and of the threads it
+   * starts from now on, to stream instead of standard output (if
+   * stream is null, to standard output).  The level of those messages
+   * is then set apart from that of standard output, starting with it. */
+  static void setOutput(PrintStream stream) {
+    output.set(stream == null ? null : new Output(stream, level));
+  }
+
+  /** Returns the output of the calling thread, to be restored with
+   * restoreOutput, or null for standard output. */
+  static Output output() {
+    return output.get();
+  }
+
+  /** Restores the output o of the calling thread, as returned by
+   * output, with its level. */
+  static void restoreOutput(Output o) {
+    output.set(o);
+  }
+
+  /** Sets the level of the messages of the calling thread: those of
+   * its output (see setOutput), or of standard output. */
+  static void setLevel(Level l) {
+    Output o = output.get();
+    if (o != null)
+      o.level = l;
+    else
+      level = l;
+  }
+
+  static Level level() {
+    Output o = output.get();
+    return o != null ? o.level : level;
+  }
+
+  /** Are messages of level l printed? */
+  static boolean enabled(Level l) {
+    return l.compareTo(level()) <= 0;
+  }
+
+  /** Prints line, if messages of level l are printed. */
+  static void log(Level l, String line) {
+    if (enabled(l))
+      put(line+"\n");
+  }
+
+  /** Returns the sink of the calling thread, in which a message of
+   * several lines is formatted before calling commit. */
+  static PrintStream sink() {
+    return sinks.get().stream;
+  }
+
+  /** Prints the contents of the sink of the calling thread, as one
+   * message, and empties it. */
+  static void commit() {
+    Sink sink = sinks.get();
+    sink.stream.flush();
+    if (sink.bytes.size() > 0)
+      put(sink.bytes.toString());
+    sink.bytes.reset();
+  }
+
+  /** Puts text in the ring, waiting while the ring is full. */
+  private static void put(String text) {
+    lock.lock();
+    try {
+      if (writer == null) {
+        writer = new Thread(Log::write, "log writer");
+        writer.setDaemon(true);
+        writer.start();
+      }
+      while (count == CAPACITY)
+        notFull.awaitUninterruptibly();
+      ring[(head + count) % CAPACITY] = text;
+      Output o = output.get();
+      dests[(head + count) % CAPACITY] = o == null ? null : o.stream;
+      count++;
+      idle = false;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The writer thread: writes the messages in the ring, forever. */
+  private static void write() {
+    PrintStream out = new PrintStream
+      (new BufferedOutputStream(System.out, 1 << 16), false);
+    String[] taken = new String[CAPACITY];
+    PrintStream[] takenDests = new PrintStream[CAPACITY];
+    ArrayList<PrintStream> written = new ArrayList<>(); // since flushed
+    while (true) {
+      int n;
+      lock.lock();
+      try {
+        if (count == 0) {
+          lock.unlock();
+          try {
+            out.flush();
+            for (PrintStream dest : written)
+              dest.flush();
+            written.clear();
+          } finally {
+            lock.lock();
+          }
+          while (count == 0) {
+            idle = true;
+            drained.signalAll();
+            notEmpty.awaitUninterruptibly();
+          }
+        }
+        n = count;
+        for (int i=0; i<n; i++) {
+          taken[i] = ring[(head + i) % CAPACITY];
+          takenDests[i] = dests[(head + i) % CAPACITY];
+          ring[(head + i) % CAPACITY] = null;
+          dests[(head + i) % CAPACITY] = null;
+        }
+        head = (head + n) % CAPACITY;
+        count = 0;
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      for (int i=0; i<n; i++) {
+        PrintStream dest = takenDests[i];
+        if (dest == null)
+          out.print(taken[i]);
+        else {
+          dest.print(taken[i]);
+          if (!written.contains(dest))
+            written.add(dest);
+        }
+        taken[i] = null;
+        takenDests[i] = null;
+      }
+    }
+  }
+
+  /** Waits until every message logged so far has been written, and
+   * flushes standard output (and the streams given to setOutput). */
+  static void flush() {
+    lock.lock();
+    try {
+      while (count > 0 || !idle)
+        drained.awaitUninterruptibly();
+    } finally {
+      lock.unlock();
+    }
+    System.out.flush();
+  }
+}
@@ -0,0 +1,174 @@
+package av;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static av.Step.Op;
+import static av.Watchdog.Outcome;
+
+/**
+ * A log of one record per schedule, for finding the shapes of
+ * schedule whose verification is expensive.  The log is a JSONL file:
+ * each line is a JSON object such as
+ *
+ * <pre>
+ * {"id":17,"nthread":2,"nsteps":[2,1],"npreAdd":1,
+ *  "ops":{"ADD":1,"REMOVE":1,"CONTAINS":1},"perms":3,
+ *  "wall":0.412,"cpu":0.398,"alloc":52428800,"peakHeap":null,
+ *  "states":1520,"transitions":3117,"civlMemory":61865984,
+ *  "civlTime":0.35,"verdict":"PASS"}
+ * </pre>
+ *
+ * (on one line).  wall and cpu are in seconds; alloc is the bytes
+ * allocated by the thread that ran CIVL; peakHeap is the peak heap of
+ * the child JVM that ran CIVL (null if CIVL ran in this JVM, whose
+ * heap is shared).  perms is the number of sequential orderings the
+ * driver checks (CostModel.interleavings).  states, transitions,
+ * civlMemory (bytes) and civlTime (seconds) are read from the
+ * statistics printed by CIVL, and are null if absent.  verdict is
+ * PASS, FAIL, TIMEOUT, MEMOUT, or CACHED.  A record for a batch has
+ * the IDs of its members in "batch" instead of the shape.
+ */
+public class MetricsLog {
+
+  /** Resources used by one run of CIVL.  Each is -1 if not known. */
+  static class Usage {
+    long cpu = -1; // CPU time, nanoseconds
+    long alloc = -1; // bytes allocated
+    long peakHeap = -1; // peak heap, bytes
+
+    /** Runs task in the calling thread, recording its CPU time and
+     * allocation. */
+    Outcome measure(Supplier<Outcome> task) {
+      long cpu0 = threadCpu(), alloc0 = threadAlloc();
+      Outcome result = task.get();
+      if (cpu0 >= 0) cpu = threadCpu() - cpu0;
+      if (alloc0 >= 0) alloc = threadAlloc() - alloc0;
+      return result;
+    }
+  }
+
+  /** CPU time (nanoseconds) of the calling thread, or -1 */
+  static long threadCpu() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    return bean.isCurrentThreadCpuTimeSupported() ?
+      bean.getCurrentThreadCpuTime() : -1;
+  }
+
+  /** Bytes allocated by the calling thread, or -1 */
+  static long threadAlloc() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean)bean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    return -1;
+  }
+
+  /** Statistics printed by CIVL: the JSON key and the pattern of the
+   * line giving its value */
+  private final static String[][] STATS = {
+    { "states", "^\\s*states\\s*:\\s*([0-9.]+)" },
+    { "transitions", "^\\s*transitions\\s*:\\s*([0-9.]+)" },
+    { "civlMemory", "^\\s*memory \\(bytes\\)\\s*:\\s*([0-9.]+)" },
+    { "civlTime", "^\\s*time \\(s\\)\\s*:\\s*([0-9.]+)" }
+  };
+
+  private final static Pattern[] STAT_PATTERNS = new Pattern[STATS.length];
+
+  static {
+    for (int i=0; i<STATS.length; i++)
+      STAT_PATTERNS[i] = Pattern.compile(STATS[i][1], Pattern.MULTILINE);
+  }
+
+  /** Returns the value of the statistic with the given key (see
+   * STATS) in output, the output of CIVL, or null if it is absent. */
+  static String stat(String output, String key) {
+    if (output == null) return null;
+    for (int i=0; i<STATS.length; i++) {
+      if (!STATS[i][0].equals(key)) continue;
+      Matcher m = STAT_PATTERNS[i].matcher(output);
+      return m.find() ? m.group(1) : null;
+    }
+    throw new IllegalArgumentException("No statistic "+key);
+  }
+
+  private BufferedWriter out;
+
+  MetricsLog(File file) throws IOException {
+    out = new BufferedWriter(new FileWriter(file));
+  }
+
+  private static String seconds(long nanos) {
+    return nanos < 0 ? "null" : String.valueOf(nanos/1000000/1000.0);
+  }
+
+  private static String number(long n) {
+    return n < 0 ? "null" : String.valueOf(n);
+  }
+
+  /** Appends the shape of sched to a JSON object. */
+  private static void shape(StringBuilder b, Schedule sched) {
+    int[] counts = new int[Step.OPS.length];
+    int[] partition = sched.partition();
+    b.append(",\"nthread\":").append(sched.nthread).append(",\"nsteps\":[");
+    for (int i=0; i<sched.nthread; i++)
+      b.append(i == 0 ? "" : ",").append(partition[i]);
+    for (int k=sched.npreAdd; k<sched.code.length; k++)
+      counts[Step.op(sched.code[k]).ordinal()]++;
+    b.append("],\"npreAdd\":").append(sched.npreAdd);
+    b.append(",\"ops\":{");
+    for (Op op : Step.OPS)
+      b.append(op.ordinal() == 0 ? "" : ",")
+        .append("\"").append(op).append("\":").append(counts[op.ordinal()]);
+    b.append("},\"perms\":")
+      .append((long)CostModel.interleavings(partition));
+  }
+
+  /**
+   * Writes the record of sched.  wall is the elapsed time
+   * (nanoseconds) of the run of CIVL, usage the resources it used,
+   * and output what CIVL printed (each may be null, e.g., for a
+   * cached schedule).
+   */
+  void record(Schedule sched, String verdict, long wall, Usage usage,
+              String output) {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"id\":").append(sched.id);
+    if (sched.batch != null) {
+      b.append(",\"batch\":[");
+      for (int i=0; i<sched.batch.length; i++)
+        b.append(i == 0 ? "" : ",").append(sched.batch[i].id);
+      b.append("]");
+    } else
+      shape(b, sched);
+    if (usage == null) usage = new Usage();
+    b.append(",\"wall\":").append(seconds(wall));
+    b.append(",\"cpu\":").append(seconds(usage.cpu));
+    b.append(",\"alloc\":").append(number(usage.alloc));
+    b.append(",\"peakHeap\":").append(number(usage.peakHeap));
+    for (String[] stat : STATS) {
+      String value = stat(output, stat[0]);
+      b.append(",\"").append(stat[0]).append("\":")
+        .append(value != null ? value : "null");
+    }
+    b.append(",\"verdict\":\"").append(verdict).append("\"}");
+    synchronized (this) {
+      try {
+        out.write(b.toString());
+        out.newLine();
+        out.flush();
+      } catch (IOException e) {
+        System.err.println("Warning: could not write metrics: "+e);
+      }
+    }
+  }
+
+  synchronized void close() throws IOException {
+    out.close();
+  }
+}
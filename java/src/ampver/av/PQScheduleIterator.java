@@ -1,6 +1,7 @@
 package av;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.io.PrintStream;
 import static av.Step.Op;
 import static av.Schedule.DSKind.*;
@@ -39,7 +40,7 @@ import static av.Schedule.DSKind.*;
  * (6) value sequence for all adds
  * (7) score sequence for all adds
  */
-public class PQScheduleIterator implements Iterator<Schedule> {
+public class PQScheduleIterator implements StratifiedScheduleIterator {
     
   // Constants...
   public final static PrintStream out = System.out;
@@ -59,6 +60,10 @@ public class PQScheduleIterator implements Iterator<Schedule> {
     
   boolean hasNext = true;
 
+  /** If true, this iterator is restricted to one stratum: only
+   * kinds, values, ... are advanced.  See stratum(). */
+  boolean oneStratum = false;
+
   /** Number of threads in current schedule */
   int nthread;
 
@@ -121,6 +126,10 @@ public class PQScheduleIterator implements Iterator<Schedule> {
   int[][] scores;
 
 
+  /** start for the schedules with the current npreAdd and
+   * partition (see Schedule.start) */
+  int[] start;
+
   // Constructor...
     
   /**
@@ -157,51 +166,7 @@ public class PQScheduleIterator implements Iterator<Schedule> {
     this.addsDominate = addsDominate;
     this.threadSym = threadSym;
     this.noAllAdd = noAllAdd;
-
-    /*
-    if (!init_nthread()) return;
-    
-    while (!init_nstep()) {
-      if (!inc_nthread()) return;
-    }
-    // nthread and nstep initialized
-
-    out.println("nthread and nstep initialized");
-    
-    while (!init_npreAdd()) {
-      if (!inc_nstep()) {
-        if (!inc_nthread()) return;
-        while (!init_nstep()) {
-          if (!inc_nthread()) return;
-        }
-      }
-    }
-    // nthread and nstep and npreAdd initialized
-    out.println("nthread and nstep and npreAdd initialized");
-
-    while (!init_partition()) {
-      if (!inc_npreAdd()) {
-        if (!inc_nstep()) {
-          if (!inc_nthread()) return;
-          while (!init_nstep()) {
-            if (!inc_nthread()) return;
-          }
-        }
-        while (!init_npreAdd()) {
-          if (!inc_nstep()) {
-            if (!inc_nthread()) return;
-            while (!init_nstep()) {
-              if (!inc_nthread()) return;
-            }
-          }
-        }
-      }
-    }
-    */
-    
-    this.hasNext =
-      init_nthread() && init_nstep() && init_npreAdd() && init_partition() &&
-      init_kinds() && init_values() && init_scores();
+    this.hasNext = first();
   }
 
   void print_state(PrintStream out) {
@@ -292,8 +257,9 @@ public class PQScheduleIterator implements Iterator<Schedule> {
     for (int i=0; i<nthread-1; i++)
       partition_stutter[i] = (partition[i] == partition[i+1]);
     for (int i=0; i<nthread; i++) {
-      kinds[i] = new int[partition[i]];
+      kinds[i] = AVUtil.resize(kinds[i], partition[i]);
     }
+    start = Schedule.start(npreAdd, partition);
   }
 
   // this partition has form m 1 1 ... 1.
@@ -317,11 +283,12 @@ public class PQScheduleIterator implements Iterator<Schedule> {
 
   /** Updates data structures that depend on kinds.  Computes
    * nadd[i] (for i:1..nthread) and totalAdds.  Computes
-   * kinds_stutter[i] (i:0..nthread-1).  Allocates values[i] and
-   * scores[i] for i in 0..nthread. */
+   * kinds_stutter[i] (i:0..nthread-1).  Sizes values[i] and
+   * scores[i] for i in 0..nthread, reusing the arrays whose length is
+   * unchanged. */
   void compute_kinds_arrays() {
-    values[0] = new int[npreAdd];
-    scores[0] = new int[npreAdd];
+    values[0] = AVUtil.resize(values[0], npreAdd);
+    scores[0] = AVUtil.resize(scores[0], npreAdd);
     totalAdds = npreAdd;
     for (int i=0; i<nthread; i++) {
       int sum = 0;
@@ -330,8 +297,8 @@ public class PQScheduleIterator implements Iterator<Schedule> {
         sum += (kinds[i][j] == 0 ? 1 : 0);
       totalAdds += sum;
       nadd[i+1] = sum;
-      values[i+1] = new int[sum];
-      scores[i+1] = new int[sum];
+      values[i+1] = AVUtil.resize(values[i+1], sum);
+      scores[i+1] = AVUtil.resize(scores[i+1], sum);
     }
     kinds_stutter[0] = false;
     for (int i=1; i<nthread; i++)
@@ -458,6 +425,389 @@ public class PQScheduleIterator implements Iterator<Schedule> {
     }
   }
 
+  // Advancing...
+
+  // For each counter x: enter_x initializes x, advancing the counters
+  // above x until x can be initialized; adv_x increments x, carrying
+  // into the counters above x when x cannot be incremented.  Both
+  // return false if there is no such state.
+
+  /** Moves to the first schedule.  Returns false if there is none. */
+  boolean first() {
+    return init_nthread() && enter_nstep() &&
+      enter_npreAdd() && enter_partition() && enter_kinds() &&
+      enter_values() && enter_scores();
+  }
+
+  boolean adv_nthread() {
+    return inc_nthread();
+  }
+
+  boolean enter_nstep() {
+    while (!init_nstep())
+      if (!adv_nthread()) return false;
+    return true;
+  }
+
+  boolean adv_nstep() {
+    return inc_nstep() || (adv_nthread() && enter_nstep());
+  }
+
+  boolean enter_npreAdd() {
+    while (!init_npreAdd())
+      if (!adv_nstep()) return false;
+    return true;
+  }
+
+  boolean adv_npreAdd() {
+    return inc_npreAdd() || (adv_nstep() && enter_npreAdd());
+  }
+
+  boolean enter_partition() {
+    while (!init_partition())
+      if (!adv_npreAdd()) return false;
+    return true;
+  }
+
+  /** If this iterator is restricted to one stratum, partition cannot
+   * be advanced. */
+  boolean adv_partition() {
+    if (oneStratum) return false;
+    return inc_partition() || (adv_npreAdd() && enter_partition());
+  }
+
+  boolean enter_kinds() {
+    while (!init_kinds())
+      if (!adv_partition()) return false;
+    return true;
+  }
+
+  boolean adv_kinds() {
+    return inc_kinds() || (adv_partition() && enter_kinds());
+  }
+
+  boolean enter_values() {
+    while (!init_values())
+      if (!adv_kinds()) return false;
+    return true;
+  }
+
+  boolean adv_values() {
+    return inc_values() || (adv_kinds() && enter_values());
+  }
+
+  boolean enter_scores() {
+    while (!init_scores())
+      if (!adv_values()) return false;
+    return true;
+  }
+
+  boolean adv_scores() {
+    return inc_scores() || (adv_values() && enter_scores());
+  }
+
+  // Strata...
+
+  public List<int[]> strata() {
+    PQScheduleIterator iter = stratum(null);
+    List<int[]> result = new ArrayList<>();
+    boolean more = iter.init_nthread() && iter.enter_nstep() &&
+      iter.enter_npreAdd() && iter.enter_partition();
+    while (more) {
+      int[] stratum = new int[3+iter.nthread];
+      stratum[0] = iter.nthread;
+      stratum[1] = iter.nstep;
+      stratum[2] = iter.npreAdd;
+      System.arraycopy(iter.partition, 0, stratum, 3, iter.nthread);
+      result.add(stratum);
+      more = iter.adv_partition();
+    }
+    return result;
+  }
+
+  /** Returns a new iterator over the schedules of stratum, which is
+   * an element of strata().  If stratum is null, returns a new
+   * iterator over all schedules, from the first. */
+  public PQScheduleIterator stratum(int[] stratum) {
+    if (stratum == null)
+      return new PQScheduleIterator
+        (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo, npreAdd_hi,
+         genericVals, distinctPriorities, addsDominate, threadSym, noAllAdd);
+    int nthread = stratum[0], nstep = stratum[1], npreAdd = stratum[2];
+    PQScheduleIterator result = new PQScheduleIterator
+      (nthread, nthread, nstep, nstep, npreAdd, npreAdd,
+       genericVals, distinctPriorities, addsDominate, threadSym, noAllAdd);
+    result.oneStratum = true;
+    System.arraycopy(stratum, 3, result.partition, 0, nthread);
+    result.compute_partition_arrays();
+    result.hasNext = result.enter_kinds() && result.enter_values() && result.enter_scores();
+    return result;
+  }
+
+  // Ranking...
+
+  /** Returns the number of score sequences for the current values.
+   * With distinct priorities, the scores are a permutation of
+   * 0..totalAdds-1, and with threadSym only one of the k!
+   * arrangements of a block of k alike (nonempty) rows is a
+   * representative. */
+  long countScores() {
+    if (!distinctPriorities)
+      return AVUtil.count_lex_2d_sym(totalAdds, scores,
+                                     threadSym ? values_stutter : null);
+    long result = AVUtil.factorial(totalAdds);
+    if (threadSym) {
+      for (int i=0; i<=nthread; ) {
+        int j = i+1;
+        while (j <= nthread && values_stutter[j-1]) j++;
+        if (scores[i].length > 0)
+          result /= AVUtil.factorial(j-i);
+        i = j;
+      }
+    }
+    return result;
+  }
+
+  /** Returns the rank of the current scores among the score
+   * sequences for the current values.  Permutations are counted by
+   * enumeration. */
+  long rankScores() {
+    if (!distinctPriorities)
+      return AVUtil.rank_lex_2d_sym(totalAdds, scores,
+                                    threadSym ? values_stutter : null);
+    int[][] target = new int[nthread+1][];
+    for (int i=0; i<=nthread; i++)
+      target[i] = scores[i].clone();
+    long result = 0;
+    init_scores();
+    while (!Arrays.deepEquals(scores, target)) {
+      inc_scores();
+      result++;
+    }
+    return result;
+  }
+
+  /** Sets scores to the score sequence of rank r for the current
+   * values. */
+  void unrankScores(long r) {
+    if (!distinctPriorities) {
+      AVUtil.unrank_lex_2d_sym(totalAdds, r, scores,
+                               threadSym ? values_stutter : null);
+    } else {
+      init_scores();
+      for (long i=0; i<r; i++)
+        inc_scores();
+    }
+  }
+
+  // When values are not generic, the scores depend on the values
+  // through values_stutter.  Without threadSym they do not, and the
+  // values and scores are ranked independently.  With threadSym, the
+  // rows of values form blocks of alike rows (by kinds_stutter) and
+  // each block contributes a weight to the number of scores:
+  //
+  // - without distinctPriorities, a block of m rows with non-decreasing
+  //   values and, within each run of equal values, non-decreasing
+  //   scores is a multiset of m (value,score) pairs; the weight of a
+  //   run of k equal rows is C(Ss+k-1,k), where Ss=totalAdds^L.
+  //
+  // - with distinctPriorities, the number of score permutations is
+  //   totalAdds!/prod(k!) over runs of k equal nonempty rows.  The
+  //   weight of a block is m!/prod(k!), the number of orderings of
+  //   its rows, and the number of scores is totalAdds!/prod(m!)
+  //   times the product of the weights of the blocks.
+  //
+  // The weight of all blocks of j rows with values in 0..c-1 is
+  // lowerWeight(m,j,c).  Ranking values is then ranking in a
+  // mixed-radix system where the radix of each block depends on the
+  // values of the blocks above it.
+
+  /** Returns the index following the last row of the block of values
+   * rows that starts at row i. */
+  int block_end(int i) {
+    int j = i+1;
+    while (j <= nthread && kinds_stutter[j-1]) j++;
+    return j;
+  }
+
+  /** The weight of rows lo..hi-1 of values, which are in one block */
+  long weight(int lo, int hi) {
+    if (lo >= hi) return 1;
+    long result = distinctPriorities ? AVUtil.factorial(hi-lo) : 1;
+    long Ss = AVUtil.power(totalAdds, nadd[lo]);
+    for (int i=lo; i<hi; ) {
+      int j = i+1;
+      while (j < hi && Arrays.equals(values[i], values[j])) j++;
+      if (distinctPriorities)
+        result /= AVUtil.factorial(j-i);
+      else
+        result = Math.multiplyExact(result, AVUtil.choose(Ss+j-i-1, j-i));
+      i = j;
+    }
+    return result;
+  }
+
+  /** The weight of all non-decreasing sequences of j rows of length L
+   * with values in 0..c-1, as the bottom rows of a block of m rows. */
+  long lowerWeight(int m, int j, long c, int L) {
+    if (distinctPriorities)
+      return Math.multiplyExact(AVUtil.choose(m, j), AVUtil.power(c, j));
+    long Ss = AVUtil.power(totalAdds, L);
+    return AVUtil.choose(Math.multiplyExact(c, Ss)+j-1, j);
+  }
+
+  /** The number of scores for any values is scoreFactor() times the
+   * product of the block weights. */
+  long scoreFactor() {
+    if (!distinctPriorities) return 1;
+    long result = AVUtil.factorial(totalAdds);
+    for (int i=0; i<=nthread; i=block_end(i))
+      if (nadd[i] > 0)
+        result /= AVUtil.factorial(block_end(i)-i);
+    return result;
+  }
+
+  /** The weight of all values of the block at row lo */
+  long blockWeight(int lo, int hi) {
+    int m = hi-lo;
+    long Sv = AVUtil.power(totalAdds, nadd[lo]);
+    if (distinctPriorities)
+      return AVUtil.power(Sv, m);
+    return AVUtil.choose
+      (Math.multiplyExact(Sv, AVUtil.power(totalAdds, nadd[lo]))+m-1, m);
+  }
+
+  /** Unless genericVals, the number of scores depends on the values. */
+  public long countKinds() {
+    if (genericVals) return countScores();
+    if (!threadSym)
+      return Math.multiplyExact
+        (AVUtil.count_lex_2d_sym(totalAdds, values, null), countScores());
+    long result = scoreFactor();
+    for (int i=0; i<=nthread; i=block_end(i))
+      result = Math.multiplyExact(result, blockWeight(i, block_end(i)));
+    return result;
+  }
+
+  public long rankKinds() {
+    if (genericVals) return rankScores();
+    if (!threadSym)
+      return AVUtil.rank_lex_2d_sym(totalAdds, values, null)*countScores()
+        + rankScores();
+    // blocks from the highest (most significant) down...
+    long result = 0, above = scoreFactor();
+    for (int e=nthread+1; e>0; ) {
+      int lo = e-1;
+      while (lo > 0 && kinds_stutter[lo-1]) lo--;
+      long below = 1;
+      for (int i=0; i<lo; i=block_end(i))
+        below = Math.multiplyExact(below, blockWeight(i, block_end(i)));
+      long h = 0;
+      for (int k=0; k<e-lo; k++)
+        h += lowerWeight(e-lo, k+1, AVUtil.row_value(totalAdds, values[lo+k]),
+                         nadd[lo]) * weight(lo+k+1, e);
+      result += above*h*below;
+      above *= weight(lo, e);
+      e = lo;
+    }
+    return result + rankScores();
+  }
+
+  public void unrankKinds(long r) {
+    if (!genericVals) {
+      if (!threadSym) {
+        long cs = countScores();
+        AVUtil.unrank_lex_2d_sym(totalAdds, r/cs, values, null);
+        compute_values_arrays();
+        r %= cs;
+      } else {
+        long above = scoreFactor();
+        for (int e=nthread+1; e>0; ) {
+          int lo = e-1, L = nadd[e-1];
+          while (lo > 0 && kinds_stutter[lo-1]) lo--;
+          long below = 1;
+          for (int i=0; i<lo; i=block_end(i))
+            below = Math.multiplyExact(below, blockWeight(i, block_end(i)));
+          long unit = above*below;
+          long max = AVUtil.power(totalAdds, L)-1; // bound on row value
+          for (int k=e-lo-1; k>=0; k--) {
+            long up = weight(lo+k+1, e);
+            // largest c<=max such that lowerWeight(..,c)*up*unit <= r...
+            long cl = 0, ch = max;
+            while (cl < ch) {
+              long c = cl + (ch-cl+1)/2, w;
+              try {
+                w = Math.multiplyExact
+                  (Math.multiplyExact(lowerWeight(e-lo, k+1, c, L), up), unit);
+              } catch (ArithmeticException ex) {
+                w = Long.MAX_VALUE;
+              }
+              if (w <= r) cl = c; else ch = c-1;
+            }
+            r -= lowerWeight(e-lo, k+1, cl, L)*up*unit;
+            max = cl;
+            int[] row = values[lo+k];
+            for (int j=0; j<L; j++) {
+              row[j] = (int)(cl % totalAdds);
+              cl /= totalAdds;
+            }
+          }
+          above *= weight(lo, e);
+          e = lo;
+        }
+        compute_values_arrays();
+      }
+    }
+    unrankScores(r);
+    hasNext = true;
+  }
+
+  public boolean nextKinds() {
+    return hasNext = adv_kinds() && enter_values() && enter_scores();
+  }
+
+  /** The cursor consists of nthread, nstep, npreAdd, partition,
+   * then kinds, values, and scores (including those of the
+   * pre-adds), flattened. */
+  public int[] getCursor() {
+    assert hasNext;
+    int[] cursor = new int[3+nthread+nstep+2*totalAdds];
+    int k = 0;
+    cursor[k++] = nthread;
+    cursor[k++] = nstep;
+    cursor[k++] = npreAdd;
+    for (int i=0; i<nthread; i++)
+      cursor[k++] = partition[i];
+    k = AVUtil.flatten(kinds, cursor, k);
+    k = AVUtil.flatten(values, cursor, k);
+    k = AVUtil.flatten(scores, cursor, k);
+    assert k == cursor.length;
+    return cursor;
+  }
+
+  public void setCursor(int[] cursor) {
+    if (cursor == null) {
+      hasNext = false;
+      return;
+    }
+    int k = 0;
+    nthread = cursor[k++];
+    allocate_nthread_arrays();
+    nstep = cursor[k++];
+    npreAdd = cursor[k++];
+    nadd[0] = npreAdd;
+    for (int i=0; i<nthread; i++)
+      partition[i] = cursor[k++];
+    compute_partition_arrays();
+    k = AVUtil.unflatten(cursor, k, kinds);
+    compute_kinds_arrays();
+    k = AVUtil.unflatten(cursor, k, values);
+    compute_values_arrays();
+    k = AVUtil.unflatten(cursor, k, scores);
+    assert k == cursor.length;
+    hasNext = true;
+  }
+
   public boolean hasNext() {
     return hasNext;
   }
@@ -468,55 +818,26 @@ public class PQScheduleIterator implements Iterator<Schedule> {
     Schedule result = new Schedule(PQUEUE);
     result.nthread = nthread;
     result.nstep = nstep;
-    result.presteps = new Step[npreAdd];
+    result.npreAdd = npreAdd;
+    result.start = start;
+    int[] code = result.code = new int[npreAdd+nstep];
+    int k = 0;
     for (int i=0; i<npreAdd; i++)
-      result.presteps[i] =
-        new Step(Op.ADD, values[0][i], scores[0][i]);
-    result.steps = new Step[nthread][];
+      code[k++] = Step.pack(Op.ADD, values[0][i], scores[0][i]);
     for (int i=0; i<nthread; i++) {
       int count = 0; // number of ADDs for thread i
       int m = partition[i];
-      result.steps[i] = new Step[m];
       for (int j=0; j<m; j++) {
         if (kinds[i][j]==0) {
-          result.steps[i][j] =
-            new Step(Op.ADD,
-                     values[i+1][count],
-                     scores[i+1][count]);
+          code[k++] = Step.pack(Op.ADD, values[i+1][count],
+                                scores[i+1][count]);
           count++;
         } else {
-          result.steps[i][j] = new Step(Op.REMOVE);
+          code[k++] = Step.pack(Op.REMOVE, Step.UNDEF, Step.UNDEF);
         }
       }
     }
-    if (!inc_scores()) {
-      do {
-        if (!inc_values()) {
-          do {
-            if (!inc_kinds()) {
-              do {
-                if (!inc_partition()) {
-                  do {
-                    if (!inc_npreAdd()) {
-                      do {
-                        if (!inc_nstep()) {
-                          do {
-                            if (!inc_nthread()) {
-                              hasNext = false;
-                              return result;
-                            }
-                          } while (!init_nstep());
-                        }
-                      } while (!init_npreAdd());
-                    }
-                  } while (!init_partition());
-                }
-              } while (!init_kinds());
-            }
-          } while (!init_values());
-        }
-      } while (!init_scores());
-    }
+    hasNext = adv_scores();
     return result;
   }
 
@@ -0,0 +1,95 @@
+package av;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * A schedule iterator that produces the schedules of another iterator,
+ * in the same order, but generates them with a parallel stream over
+ * the spliterator of that iterator.  Schedules are generated in
+ * windows of a few strata per thread: while the schedules of one
+ * window are being consumed, the next window is generated.  This
+ * bounds the number of schedules held in memory.
+ *
+ * The position of this iterator cannot be set; to resume from a
+ * cursor, set the cursor of the source iterator before wrapping it.
+ */
+public class ParallelScheduleIterator implements ScheduleIterator {
+
+  /** Number of strata in a window, per generating thread */
+  public final static int STRATA_PER_THREAD = 4;
+
+  /** The part of the spliterator of source not yet generated */
+  private ScheduleSpliterator rest;
+
+  /** Threads generating the schedules */
+  private ForkJoinPool pool;
+
+  /** Number of strata in a window */
+  private int window;
+
+  /** Schedules of the current window */
+  private List<Schedule> buffer = new ArrayList<>();
+
+  /** Index in buffer of the next schedule */
+  private int pos = 0;
+
+  /** Generation of the next window, or null if there is none */
+  private Future<List<Schedule>> ahead;
+
+  /** Creates an iterator over the remaining schedules of source,
+   * generated by nthread threads. */
+  ParallelScheduleIterator(StratifiedScheduleIterator source, int nthread) {
+    rest = new ScheduleSpliterator(source);
+    pool = new ForkJoinPool(nthread);
+    window = STRATA_PER_THREAD * nthread;
+    ahead = generate();
+  }
+
+  /** Starts the generation of the next window. */
+  private Future<List<Schedule>> generate() {
+    ScheduleSpliterator piece = rest.prefix(window);
+    if (piece == null) {
+      pool.shutdown();
+      return null;
+    }
+    return pool.submit(() -> StreamSupport.stream(piece, true)
+                       .collect(Collectors.toList()));
+  }
+
+  /** Makes sure buffer has a next schedule if there is one.  Returns
+   * false if there is none. */
+  private boolean fill() {
+    while (pos == buffer.size()) {
+      if (ahead == null) return false;
+      try {
+        buffer = ahead.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+      pos = 0;
+      ahead = generate();
+    }
+    return true;
+  }
+
+  public boolean hasNext() {
+    return fill();
+  }
+
+  public Schedule next() {
+    if (!fill()) return null;
+    Schedule result = buffer.get(pos);
+    buffer.set(pos++, null);
+    return result;
+  }
+
+  public int[] getCursor() {
+    assert hasNext();
+    return buffer.get(pos).cursor;
+  }
+}
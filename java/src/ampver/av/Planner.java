@@ -0,0 +1,260 @@
+package av;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Random;
+import static av.Watchdog.Outcome;
+
+/**
+ * Predicts the time and memory needed to verify all schedules from
+ * a sample of them (-plan), and recommends the largest bounds that
+ * can be verified within a budget of time.
+ *
+ * The schedules are divided into groups, one for each number of
+ * threads, steps and pre-adds; the schedules of a group are those of
+ * consecutive strata, so they have consecutive IDs.  From each group
+ * a stratified sample is taken: its ID range is divided into equal
+ * parts and one schedule is chosen at random from each, so the
+ * sample covers the partitions of the steps among the threads.
+ *
+ * The time of a group is estimated with CostModel as the ratio
+ * estimator: the mean over the sample of the time of a schedule
+ * divided by the stratumCost of its stratum, times the total
+ * stratumCost of the group (computed by ScheduleIndex without
+ * enumerating the schedules).  A group is only sampled as a whole,
+ * and the number of schedules of a group does not depend on the
+ * upper bounds, so the time for smaller bounds is the sum of the
+ * times of the groups within them.  The time of a run on n cores is
+ * estimated as that total divided by n, and its peak memory as n
+ * times the greatest memory used by one schedule.
+ */
+public class Planner {
+
+  /** The schedules with one number of threads, steps and pre-adds */
+  private static class Group {
+    int nthread, nstep, npreAdd;
+    /** ID of the first schedule of the group */
+    long first;
+    /** Number of schedules of the group */
+    long count = 0;
+    /** Total stratumCost of the schedules of the group */
+    double cost = 0;
+    /** Number of schedules sampled */
+    int nsample = 0;
+    /** Number of sampled schedules verified */
+    int nmeasured = 0;
+    /** Number of those that exceeded their budgets, whose time is
+     * only a lower bound */
+    int nexceeded = 0;
+    /** Sum over the schedules measured of time (seconds) / stratumCost */
+    double ratio = 0;
+    /** Greatest memory (bytes) used by a schedule, or -1 if not known */
+    long memory = -1;
+
+    /** Is the estimated time more than a lower bound? */
+    boolean known() {
+      return nmeasured > 0 && nexceeded == 0;
+    }
+
+    /** Estimated time (seconds) to verify the group, or NaN if no
+     * schedule was measured */
+    double time() {
+      return nmeasured == 0 ? Double.NaN : ratio / nmeasured * cost;
+    }
+  }
+
+  /** The groups, in order of ID */
+  private ArrayList<Group> groups = new ArrayList<>();
+
+  /** IDs of the sampled schedules, in increasing order */
+  private int[] sample;
+
+  /**
+   * Divides the schedules of index into groups and chooses up to
+   * samples schedules from each, with a Random seeded with seed.  The
+   * schedule IDs must fit in an int.
+   */
+  Planner(ScheduleIndex index, int samples, long seed) {
+    Group group = null;
+    long id = 0;
+    for (int k=0; k<index.nstrata(); k++) {
+      int[] stratum = index.stratum(k);
+      if (group == null || group.nthread != stratum[0] ||
+          group.nstep != stratum[1] || group.npreAdd != stratum[2]) {
+        group = new Group();
+        group.nthread = stratum[0];
+        group.nstep = stratum[1];
+        group.npreAdd = stratum[2];
+        group.first = id;
+        groups.add(group);
+      }
+      long count = index.count(k);
+      group.count += count;
+      group.cost += count * CostModel.stratumCost(stratum);
+      id += count;
+    }
+    Random random = new Random(seed);
+    ArrayList<Integer> ids = new ArrayList<>();
+    for (Group g : groups) {
+      g.nsample = (int)Math.min(samples, g.count);
+      for (int j=0; j<g.nsample; j++) {
+        long lo = g.count*j/g.nsample, hi = g.count*(j+1)/g.nsample;
+        ids.add((int)(g.first + lo + (long)(random.nextDouble()*(hi-lo))));
+      }
+    }
+    sample = new int[ids.size()];
+    for (int i=0; i<sample.length; i++)
+      sample[i] = ids.get(i);
+  }
+
+  /** Returns the IDs of the sampled schedules, in increasing order. */
+  int[] sample() {
+    return sample;
+  }
+
+  /** Returns the group of the schedule with the given ID. */
+  private Group group(long id) {
+    int lo = 0, hi = groups.size()-1;
+    while (lo < hi) {
+      int mid = (lo+hi+1)/2;
+      if (groups.get(mid).first <= id) lo = mid; else hi = mid-1;
+    }
+    return groups.get(lo);
+  }
+
+  /** Returns the stratum of sched, as in ScheduleIterator.strata(). */
+  private static int[] stratum(Schedule sched) {
+    int[] result = new int[3+sched.nthread];
+    result[0] = sched.nthread;
+    result[1] = sched.nstep;
+    result[2] = sched.npreAdd;
+    for (int i=0; i<sched.nthread; i++)
+      result[3+i] = sched.nsteps(i);
+    return result;
+  }
+
+  /**
+   * Records the verification of the sampled schedule sched, which had
+   * the given outcome and took wall nanoseconds and memory bytes (-1
+   * if not known).
+   */
+  synchronized void record(Schedule sched, Outcome outcome, long wall,
+                           long memory) {
+    Group g = group(sched.id);
+    g.memory = Math.max(g.memory, memory);
+    if (outcome == Outcome.TIMEOUT || outcome == Outcome.MEMOUT)
+      g.nexceeded++;
+    g.nmeasured++;
+    g.ratio += wall/1e9 / CostModel.stratumCost(stratum(sched));
+  }
+
+  private static String megabytes(long bytes) {
+    return bytes < 0 ? "?" : String.valueOf((bytes + 1048575)/1048576);
+  }
+
+  /** The bounds with the given upper bounds and lower bounds lo */
+  private static String bounds(int[] lo, int nthread, int nstep,
+                               int npreAdd) {
+    return "-nthread="+lo[0]+".."+nthread+" -nstep="+lo[1]+".."+nstep+
+      " -npreAdd="+lo[2]+".."+npreAdd;
+  }
+
+  /** The totals over the groups within the given upper bounds: the
+   * number of schedules, time, memory, and whether all are known */
+  private static class Total {
+    long count = 0;
+    double time = 0;
+    long memory = -1;
+    boolean known = true;
+  }
+
+  private Total total(int nthread, int nstep, int npreAdd) {
+    Total result = new Total();
+    for (Group g : groups) {
+      if (g.nthread > nthread || g.nstep > nstep || g.npreAdd > npreAdd)
+        continue;
+      result.count += g.count;
+      result.time += g.nmeasured > 0 ? g.time() : 0;
+      result.memory = Math.max(result.memory, g.memory);
+      result.known &= g.known();
+    }
+    return result;
+  }
+
+  /**
+   * Prints the estimates for each group and for all schedules, and,
+   * if budget (seconds) is positive, the largest bounds whose
+   * schedules can be verified on ncore cores within the budget.  lo
+   * is the lower bounds of nthread, nstep and npreAdd.
+   */
+  synchronized void print(PrintStream out, int[] lo, int ncore, long budget) {
+    int nsample = 0, nexceeded = 0;
+    for (Group g : groups) {
+      nsample += g.nmeasured;
+      nexceeded += g.nexceeded;
+    }
+    out.println();
+    out.println("Plan, from "+nsample+" sampled schedules"+
+                (nexceeded == 0 ? "" : " ("+nexceeded+
+                 " exceeded their budgets)")+":");
+    out.println("nthread  nstep  npreAdd   schedules  sampled  "+
+                "s/schedule     total (s)  memory (MB)");
+    int nthread_hi = 0, nstep_hi = 0, npreAdd_hi = 0;
+    for (Group g : groups) {
+      nthread_hi = Math.max(nthread_hi, g.nthread);
+      nstep_hi = Math.max(nstep_hi, g.nstep);
+      npreAdd_hi = Math.max(npreAdd_hi, g.npreAdd);
+      double time = g.time();
+      out.println(String.format
+                  ("%7d  %5d  %7d  %10d  %7d  %10s  %12s  %11s",
+                   g.nthread, g.nstep, g.npreAdd, g.count,
+                   g.nmeasured,
+                   Double.isNaN(time) ? "?" :
+                   String.format("%.3f", time / g.count),
+                   Double.isNaN(time) ? "?" :
+                   (g.known() ? "" : ">")+String.format("%.1f", time),
+                   megabytes(g.memory)));
+    }
+    Total all = total(nthread_hi, nstep_hi, npreAdd_hi);
+    out.println("Estimate for all "+all.count+" schedules: "+
+                (all.known ? "" : "more than ")+
+                String.format("%.1f", all.time)+" s of verification, "+
+                AMPVer.duration(all.time / ncore)+" on "+ncore+
+                " cores, peak memory about "+ncore+" x "+
+                megabytes(all.memory)+" MB.");
+    if (budget <= 0)
+      return;
+    out.println("Largest bounds that fit in "+AMPVer.duration(budget)+
+                " on "+ncore+" cores:");
+    int[] best = null;
+    long bestCount = -1;
+    for (int a=lo[0]; a<=nthread_hi; a++)
+      for (int b=lo[1]; b<=nstep_hi; b++)
+        for (int c=lo[2]; c<=npreAdd_hi; c++) {
+          if (!fits(a, b, c, ncore, budget) ||
+              (a < nthread_hi && fits(a+1, b, c, ncore, budget)) ||
+              (b < nstep_hi && fits(a, b+1, c, ncore, budget)) ||
+              (c < npreAdd_hi && fits(a, b, c+1, ncore, budget)))
+            continue; // does not fit, or is not maximal
+          Total t = total(a, b, c);
+          out.println("  "+bounds(lo, a, b, c)+": "+t.count+" schedules, "+
+                      AMPVer.duration(t.time / ncore)+", "+ncore+" x "+
+                      megabytes(t.memory)+" MB");
+          if (t.count > bestCount) {
+            best = new int[] { a, b, c };
+            bestCount = t.count;
+          }
+        }
+    if (best == null)
+      out.println("  none");
+    else
+      out.println("Recommended: "+bounds(lo, best[0], best[1], best[2]));
+  }
+
+  /** Can the schedules within the given upper bounds be verified on
+   * ncore cores within budget seconds? */
+  private boolean fits(int nthread, int nstep, int npreAdd, int ncore,
+                       long budget) {
+    Total t = total(nthread, nstep, npreAdd);
+    return t.count > 0 && t.known && t.time / ncore <= budget;
+  }
+}
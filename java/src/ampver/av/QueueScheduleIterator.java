@@ -1,6 +1,7 @@
 package av;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.io.PrintStream;
 import static av.Step.Op;
 import static av.Schedule.DSKind.*;
@@ -44,7 +45,7 @@ import static av.Schedule.DSKind.*;
  * (5) kinds: specifies ADD or REMOVE for each of the nstep steps
  * (6) values: specifies value argument for each ADD op (incl. pre-adds)
  */
-public class QueueScheduleIterator implements Iterator<Schedule> {
+public class QueueScheduleIterator implements StratifiedScheduleIterator {
     
   // Constants...
   public final static PrintStream out = System.out;
@@ -62,6 +63,10 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
     
   boolean hasNext = true;
 
+  /** If true, this iterator is restricted to one stratum: only
+   * kinds, values, ... are advanced.  See stratum(). */
+  boolean oneStratum = false;
+
   /** Number of threads in current schedule */
   int nthread;
 
@@ -111,6 +116,10 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
    *  add operation of thread i-1. */
   int[][] values;
 
+  /** start for the schedules with the current npreAdd and
+   * partition (see Schedule.start) */
+  int[] start;
+
   // Constructor...
     
   /**
@@ -140,8 +149,7 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
     this.genericVals = genericVals;
     this.addsDominate = addsDominate;
     this.threadSym = threadSym;
-    this.hasNext = init_nthread() && init_nstep() && init_npreAdd()
-      && init_partition() && init_kinds() && init_values();
+    this.hasNext = first();
   }
 
   void print_state(PrintStream out) {
@@ -229,8 +237,9 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
     for (int i=0; i<nthread-1; i++)
       partition_stutter[i] = (partition[i] == partition[i+1]);
     for (int i=0; i<nthread; i++) {
-      kinds[i] = new int[partition[i]];
+      kinds[i] = AVUtil.resize(kinds[i], partition[i]);
     }
+    start = Schedule.start(npreAdd, partition);
   }
 
   // this partition has form m 1 1 ... 1.
@@ -253,9 +262,10 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
 
   /** Updates data structures that depend on kinds.  Computes nadd[i]
    * (for i:1..nthread) and totalAdds.  Computes kinds_stutter[i]
-   * (i:0..nthread-1).  Allocates values[i] for i in 0..nthread. */
+   * (i:0..nthread-1).  Sizes values[i] for i in 0..nthread, reusing
+   * the arrays whose length is unchanged. */
   void compute_kinds_arrays() {
-    values[0] = new int[npreAdd];
+    values[0] = AVUtil.resize(values[0], npreAdd);
     totalAdds = npreAdd;
     for (int i=0; i<nthread; i++) {
       int sum = 0;
@@ -264,7 +274,7 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
         sum += (kinds[i][j] == 0 ? 1 : 0);
       totalAdds += sum;
       nadd[i+1] = sum;
-      values[i+1] = new int[sum];
+      values[i+1] = AVUtil.resize(values[i+1], sum);
     }
     kinds_stutter[0] = false;
     for (int i=1; i<nthread; i++)
@@ -326,6 +336,182 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
     return result;
   }
 
+  // Advancing...
+
+  // For each counter x: enter_x initializes x, advancing the counters
+  // above x until x can be initialized; adv_x increments x, carrying
+  // into the counters above x when x cannot be incremented.  Both
+  // return false if there is no such state.
+
+  /** Moves to the first schedule.  Returns false if there is none. */
+  boolean first() {
+    return init_nthread() && enter_nstep() &&
+      enter_npreAdd() && enter_partition() && enter_kinds() &&
+      enter_values();
+  }
+
+  boolean adv_nthread() {
+    return inc_nthread();
+  }
+
+  boolean enter_nstep() {
+    while (!init_nstep())
+      if (!adv_nthread()) return false;
+    return true;
+  }
+
+  boolean adv_nstep() {
+    return inc_nstep() || (adv_nthread() && enter_nstep());
+  }
+
+  boolean enter_npreAdd() {
+    while (!init_npreAdd())
+      if (!adv_nstep()) return false;
+    return true;
+  }
+
+  boolean adv_npreAdd() {
+    return inc_npreAdd() || (adv_nstep() && enter_npreAdd());
+  }
+
+  boolean enter_partition() {
+    while (!init_partition())
+      if (!adv_npreAdd()) return false;
+    return true;
+  }
+
+  /** If this iterator is restricted to one stratum, partition cannot
+   * be advanced. */
+  boolean adv_partition() {
+    if (oneStratum) return false;
+    return inc_partition() || (adv_npreAdd() && enter_partition());
+  }
+
+  boolean enter_kinds() {
+    while (!init_kinds())
+      if (!adv_partition()) return false;
+    return true;
+  }
+
+  boolean adv_kinds() {
+    return inc_kinds() || (adv_partition() && enter_kinds());
+  }
+
+  boolean enter_values() {
+    while (!init_values())
+      if (!adv_kinds()) return false;
+    return true;
+  }
+
+  boolean adv_values() {
+    return inc_values() || (adv_kinds() && enter_values());
+  }
+
+  // Strata...
+
+  public List<int[]> strata() {
+    QueueScheduleIterator iter = stratum(null);
+    List<int[]> result = new ArrayList<>();
+    boolean more = iter.init_nthread() && iter.enter_nstep() &&
+      iter.enter_npreAdd() && iter.enter_partition();
+    while (more) {
+      int[] stratum = new int[3+iter.nthread];
+      stratum[0] = iter.nthread;
+      stratum[1] = iter.nstep;
+      stratum[2] = iter.npreAdd;
+      System.arraycopy(iter.partition, 0, stratum, 3, iter.nthread);
+      result.add(stratum);
+      more = iter.adv_partition();
+    }
+    return result;
+  }
+
+  /** Returns a new iterator over the schedules of stratum, which is
+   * an element of strata().  If stratum is null, returns a new
+   * iterator over all schedules, from the first. */
+  public QueueScheduleIterator stratum(int[] stratum) {
+    if (stratum == null)
+      return new QueueScheduleIterator
+        (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo, npreAdd_hi,
+         genericVals, addsDominate, threadSym);
+    int nthread = stratum[0], nstep = stratum[1], npreAdd = stratum[2];
+    QueueScheduleIterator result = new QueueScheduleIterator
+      (nthread, nthread, nstep, nstep, npreAdd, npreAdd,
+       genericVals, addsDominate, threadSym);
+    result.oneStratum = true;
+    System.arraycopy(stratum, 3, result.partition, 0, nthread);
+    result.compute_partition_arrays();
+    result.hasNext = result.enter_kinds() && result.enter_values();
+    return result;
+  }
+
+  // Ranking...
+
+  /** If genericVals, the values are determined by the kinds. */
+  public long countKinds() {
+    if (genericVals) return 1;
+    return AVUtil.count_lex_2d_sym(totalAdds, values,
+                                   threadSym ? kinds_stutter : null);
+  }
+
+  public long rankKinds() {
+    if (genericVals) return 0;
+    return AVUtil.rank_lex_2d_sym(totalAdds, values,
+                                  threadSym ? kinds_stutter : null);
+  }
+
+  public void unrankKinds(long r) {
+    if (genericVals)
+      assert r == 0;
+    else
+      AVUtil.unrank_lex_2d_sym(totalAdds, r, values,
+                               threadSym ? kinds_stutter : null);
+    hasNext = true;
+  }
+
+  public boolean nextKinds() {
+    return hasNext = adv_kinds() && enter_values();
+  }
+
+  /** The cursor consists of nthread, nstep, npreAdd, partition,
+   * then kinds and values (including the pre-add values),
+   * flattened. */
+  public int[] getCursor() {
+    assert hasNext;
+    int[] cursor = new int[3+nthread+nstep+totalAdds];
+    int k = 0;
+    cursor[k++] = nthread;
+    cursor[k++] = nstep;
+    cursor[k++] = npreAdd;
+    for (int i=0; i<nthread; i++)
+      cursor[k++] = partition[i];
+    k = AVUtil.flatten(kinds, cursor, k);
+    k = AVUtil.flatten(values, cursor, k);
+    assert k == cursor.length;
+    return cursor;
+  }
+
+  public void setCursor(int[] cursor) {
+    if (cursor == null) {
+      hasNext = false;
+      return;
+    }
+    int k = 0;
+    nthread = cursor[k++];
+    allocate_nthread_arrays();
+    nstep = cursor[k++];
+    npreAdd = cursor[k++];
+    nadd[0] = npreAdd;
+    for (int i=0; i<nthread; i++)
+      partition[i] = cursor[k++];
+    compute_partition_arrays();
+    k = AVUtil.unflatten(cursor, k, kinds);
+    compute_kinds_arrays();
+    k = AVUtil.unflatten(cursor, k, values);
+    assert k == cursor.length;
+    hasNext = true;
+  }
+
   public boolean hasNext() {
     return hasNext;
   }
@@ -336,47 +522,25 @@ public class QueueScheduleIterator implements Iterator<Schedule> {
     Schedule result = new Schedule(QUEUE);
     result.nthread = nthread;
     result.nstep = nstep;
-    result.presteps = new Step[npreAdd];
+    result.npreAdd = npreAdd;
+    result.start = start;
+    int[] code = result.code = new int[npreAdd+nstep];
+    int k = 0;
     for (int i=0; i<npreAdd; i++)
-      result.presteps[i] = new Step(Op.ADD, values[0][i]);
-    result.steps = new Step[nthread][];
+      code[k++] = Step.pack(Op.ADD, values[0][i], Step.UNDEF);
     for (int i=0; i<nthread; i++) {
       int count = 0; // number of ADDs for thread i
       int m = partition[i];
-      result.steps[i] = new Step[m];
       for (int j=0; j<m; j++) {
         if (kinds[i][j]==0) {
-          result.steps[i][j] = new Step(Op.ADD, values[i+1][count]);
+          code[k++] = Step.pack(Op.ADD, values[i+1][count], Step.UNDEF);
           count++;
         } else {
-          result.steps[i][j] = new Step(Op.REMOVE);
+          code[k++] = Step.pack(Op.REMOVE, Step.UNDEF, Step.UNDEF);
         }
       }
     }
-    if (!inc_values()) {
-      do {
-        if (!inc_kinds()) {
-          do {
-            if (!inc_partition()) {
-              do {
-                if (!inc_npreAdd()) {
-                  do {
-                    if (!inc_nstep()) {
-                      do {
-                        if (!inc_nthread()) {
-                          hasNext = false;
-                          return result;
-                        }
-                      } while (!init_nstep());
-                    }
-                  } while (!init_npreAdd());
-                }
-              } while (!init_partition());
-            }
-          } while (!init_kinds());
-        }
-      } while (!init_values());
-    }
+    hasNext = adv_values();
     return result;
   }
   
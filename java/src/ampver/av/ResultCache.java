@@ -0,0 +1,124 @@
+package av;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A persistent cache of verification results that can be shared by
+ * many runs.  An entry is keyed by a SHA-256 digest of everything
+ * that can affect the result of verifying one schedule: the text of
+ * the schedule translation unit (without its header comment, which
+ * contains the ID and date), the CIVL command line, and the contents
+ * of every input file.  The input files are those named on the
+ * command line, all files in the include directory, and the COLLECT
+ * jar (which contains CIVL).
+ *
+ * Only successful verifications are recorded: a schedule that fails
+ * is always verified again, so that its output is regenerated.  An
+ * entry is an empty file whose name is the hexadecimal digest; to
+ * keep directories small, the first two digits name a subdirectory.
+ * Entries are created with an atomic move, so several runs may use
+ * the same cache directory at the same time.
+ */
+public class ResultCache {
+
+  /** The root directory of the cache */
+  private File dir;
+
+  /** Digest of the command line and input files, which is common to
+   * all schedules of a run */
+  private byte[] inputDigest;
+
+  /**
+   * Creates a cache in directory dir (which is created if needed)
+   * for a run using the given CIVL commands.  The arguments that
+   * name existing files, and the files in includeDir, are read and
+   * digested.
+   */
+  ResultCache(File dir, List<String> commands, File includeDir)
+    throws IOException {
+    this.dir = dir;
+    dir.mkdirs();
+    if (!dir.isDirectory())
+      throw new IOException("Could not create cache directory "+dir);
+    MessageDigest md = newDigest();
+    for (String command : commands) {
+      update(md, command);
+      File file = new File(command);
+      if (file.isFile())
+        md.update(Files.readAllBytes(file.toPath()));
+    }
+    File[] headers = includeDir.listFiles();
+    if (headers != null) {
+      Arrays.sort(headers);
+      for (File header : headers) {
+        if (header.isFile()) {
+          update(md, header.getName());
+          md.update(Files.readAllBytes(header.toPath()));
+        }
+      }
+    }
+    // the jar containing this class also contains CIVL...
+    try {
+      File jar = new File(ResultCache.class.getProtectionDomain()
+                          .getCodeSource().getLocation().toURI());
+      update(md, jar+" "+jar.length()+" "+jar.lastModified());
+    } catch (Exception e) {
+      // unknown location: the cache is keyed by the model files only
+    }
+    inputDigest = md.digest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Digests a string followed by a 0 separator. */
+  private static void update(MessageDigest md, String str) {
+    md.update(str.getBytes(StandardCharsets.UTF_8));
+    md.update((byte)0);
+  }
+
+  /** Returns the key for the schedule with the given translation unit
+   * text (excluding the header comment). */
+  String key(String scheduleText) {
+    MessageDigest md = newDigest();
+    md.update(inputDigest);
+    update(md, scheduleText);
+    byte[] digest = md.digest();
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest)
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
+  private File entry(String key) {
+    return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+  }
+
+  /** Is there a record of a successful verification for key? */
+  boolean contains(String key) {
+    return entry(key).exists();
+  }
+
+  /** Records a successful verification for key. */
+  void add(String key) throws IOException {
+    File file = entry(key);
+    File subdir = file.getParentFile();
+    subdir.mkdirs();
+    File tmp = File.createTempFile("entry", ".tmp", subdir);
+    Files.move(tmp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+}
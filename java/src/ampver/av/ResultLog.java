@@ -0,0 +1,229 @@
+package av;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The results of a run (-resultLog): the schedule, verdict and CIVL
+ * output of each schedule, in two files in tmpDir instead of a
+ * schedule file and an output file for each schedule.
+ *
+ * LOG is a sequence of blocks, each compressed on its own with
+ * Deflater.  A block holds the records of consecutive runs, up to
+ * BLOCK bytes before compression; the records of a run are much
+ * alike, so a block compresses far better than any one of them.  A
+ * record is the verdict, the file stem (schedule_ID or batch_ID), the
+ * schedule text and the output of CIVL, each written as the length
+ * and bytes of its UTF-8 encoding.
+ *
+ * INDEX is a sequence of entries of ENTRY bytes, one for each
+ * schedule of each record: the schedule ID (int), the offset (long)
+ * and compressed length (int) of the block in LOG, and the offset
+ * (int) of the record in the uncompressed block.  The record of a
+ * batch has an entry for each of its schedules.  Records are added in
+ * the order in which the runs finish, and a schedule may have several
+ * (a batch and then the schedule alone, or a resumed run): the last
+ * is the result of the schedule.
+ *
+ * Blocks are written when full and by flush, which AMPVer calls with
+ * each checkpoint, and a block is written to LOG before its entries
+ * are written to INDEX, so after a crash INDEX only refers to whole
+ * blocks (an incomplete last entry is ignored).  Records not yet
+ * written are lost, but the checkpoint does not count their
+ * schedules as verified either.
+ */
+public class ResultLog {
+
+  /** Name of the file of blocks, in tmpDir */
+  public final static String LOG = "results.log";
+
+  /** Name of the file of index entries, in tmpDir */
+  public final static String INDEX = "results.idx";
+
+  /** Size (bytes) of an index entry */
+  public final static int ENTRY = 20;
+
+  /** Size (bytes) of the records of a block, before compression,
+   * beyond which the block is written */
+  public final static int BLOCK = 1 << 18;
+
+  /** A record read from the log */
+  static class Result {
+    String verdict;
+    String stem;
+    String source;
+    String output;
+  }
+
+  private DataOutputStream log;
+
+  private DataOutputStream index;
+
+  /** Offset in LOG of the next block */
+  private long offset;
+
+  /** The records of the block being filled */
+  private ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+  private DataOutputStream blockData = new DataOutputStream(block);
+
+  /** The index entries of the block being filled, with the block
+   * offset and length to be filled in */
+  private ByteArrayOutputStream entries = new ByteArrayOutputStream();
+
+  private DataOutputStream entryData = new DataOutputStream(entries);
+
+  private Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+  /** Opens the log in dir, appending to it if it exists. */
+  ResultLog(File dir) throws IOException {
+    File logFile = new File(dir, LOG), indexFile = new File(dir, INDEX);
+    try (RandomAccessFile f = new RandomAccessFile(indexFile, "rw")) {
+      f.setLength(f.length() / ENTRY * ENTRY);
+    }
+    offset = logFile.length();
+    log = new DataOutputStream(new BufferedOutputStream
+                               (new FileOutputStream(logFile, true), 1 << 16));
+    index = new DataOutputStream(new BufferedOutputStream
+                                 (new FileOutputStream(indexFile, true)));
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Adds the record of a run of CIVL on the schedules with the given
+   * IDs: the file stem of the run, its verdict (an Outcome, CACHED or
+   * DRYRUN), the schedule text and the output of CIVL.
+   */
+  synchronized void append(String stem, int[] ids, String verdict,
+                           String source, String output)
+    throws IOException {
+    int position = block.size();
+    writeString(blockData, verdict);
+    writeString(blockData, stem);
+    writeString(blockData, source);
+    writeString(blockData, output);
+    for (int id : ids) {
+      entryData.writeInt(id);
+      entryData.writeInt(position);
+    }
+    if (block.size() >= BLOCK)
+      writeBlock();
+  }
+
+  /** Writes the block being filled to LOG and its entries to INDEX. */
+  private void writeBlock() throws IOException {
+    if (block.size() == 0) return;
+    deflater.reset();
+    deflater.setInput(block.toByteArray());
+    deflater.finish();
+    byte[] buffer = new byte[1 << 16];
+    int length = 0;
+    while (!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      log.write(buffer, 0, n);
+      length += n;
+    }
+    log.flush();
+    DataInputStream in = new DataInputStream
+      (new ByteArrayInputStream(entries.toByteArray()));
+    for (int i=entries.size()/8; i>0; i--) {
+      index.writeInt(in.readInt());
+      index.writeLong(offset);
+      index.writeInt(length);
+      index.writeInt(in.readInt());
+    }
+    index.flush();
+    offset += length;
+    block.reset();
+    entries.reset();
+  }
+
+  /** Writes the records added so far. */
+  synchronized void flush() throws IOException {
+    writeBlock();
+  }
+
+  synchronized void close() throws IOException {
+    writeBlock();
+    log.close();
+    index.close();
+    deflater.end();
+  }
+
+  /**
+   * Returns the last record of the schedule with the given ID in the
+   * log in dir, or null if it has none.
+   */
+  static Result read(File dir, int id) throws IOException {
+    byte[] entries = Files.readAllBytes(new File(dir, INDEX).toPath());
+    DataInputStream in =
+      new DataInputStream(new ByteArrayInputStream(entries));
+    long offset = -1;
+    int length = 0, position = 0;
+    for (int i=entries.length/ENTRY; i>0; i--) {
+      int id1 = in.readInt();
+      long offset1 = in.readLong();
+      int length1 = in.readInt(), position1 = in.readInt();
+      if (id1 == id) {
+        offset = offset1;
+        length = length1;
+        position = position1;
+      }
+    }
+    if (offset < 0)
+      return null;
+    byte[] compressed = new byte[length];
+    try (RandomAccessFile f = new RandomAccessFile(new File(dir, LOG), "r")) {
+      f.seek(offset);
+      f.readFully(compressed);
+    }
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1 << 16];
+    try {
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (n == 0 && inflater.needsInput())
+          throw new IOException("Truncated block at "+offset+" in "+LOG);
+        bytes.write(buffer, 0, n);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block at "+offset+" in "+LOG+": "+e);
+    } finally {
+      inflater.end();
+    }
+    byte[] block = bytes.toByteArray();
+    DataInputStream record = new DataInputStream
+      (new ByteArrayInputStream(block, position, block.length - position));
+    Result result = new Result();
+    result.verdict = readString(record);
+    result.stem = readString(record);
+    result.source = readString(record);
+    result.output = readString(record);
+    return result;
+  }
+}
@@ -14,26 +14,70 @@ public class Schedule {
   DSKind kind; // kind of data structure
   int nthread; // number of threads
   int nstep; // total number of steps (excluding presteps)
-  Step[] presteps; // steps to be executed before threads
-  Step[][] steps; // steps for each thread, length nthread
+  int npreAdd; // number of steps to be executed before threads
+  /** The steps packed by Step.pack: the presteps, then the steps of
+   * thread 0, thread 1, ... */
+  int[] code;
+  /** start[i] is the index in code of the first step of thread i,
+   * for i in 0..nthread, so start[0]=npreAdd and
+   * start[nthread]=code.length.  An iterator shares this array among
+   * the schedules with the same partition: it must not be
+   * modified. */
+  int[] start;
+  int[] cursor; // cursor of iterator at this schedule, if recorded
+  String text; // schedule file contents, if kept in memory
+  Schedule[] batch; // schedules verified together, if this is a batch
 
   Schedule(DSKind kind) {
     this.kind = kind;
   }
 
+  /** Returns the number of steps of thread i. */
+  int nsteps(int i) {
+    return start[i+1] - start[i];
+  }
+
+  /** Returns the packed step j of thread i. */
+  int step(int i, int j) {
+    return code[start[i]+j];
+  }
+
+  /** Returns the partition of the steps: nsteps(i) for each thread
+   * i. */
+  int[] partition() {
+    int[] result = new int[nthread];
+    for (int i=0; i<nthread; i++)
+      result[i] = nsteps(i);
+    return result;
+  }
+
+  /** Returns an array start for the given npreAdd and partition. */
+  static int[] start(int npreAdd, int[] partition) {
+    int[] result = new int[partition.length+1];
+    result[0] = npreAdd;
+    for (int i=0; i<partition.length; i++)
+      result[i+1] = result[i] + partition[i];
+    return result;
+  }
+
   public void print(PrintStream out) {
+    if (batch != null) {
+      for (Schedule member : batch)
+        member.print(out);
+      return;
+    }
     out.println("begin schedule[id="+id+" kind="+kind+"]");
     out.print("  presteps  = {");
-    for (int i=0; i<presteps.length; i++) {
+    for (int i=0; i<npreAdd; i++) {
       if (i>0) out.print(", ");
-      out.print(presteps[i]);
+      out.print(Step.toString(code[i]));
     }
     out.println("}");
     for (int i=0; i<nthread; i++) {
       out.print("  thread["+i+"] = {");
-      for (int j=0; j<steps[i].length; j++) {
+      for (int j=0; j<nsteps(i); j++) {
         if (j>0) out.print(", ");
-        out.print(steps[i][j]);
+        out.print(Step.toString(step(i, j)));
       }
       out.println("}");
     }
@@ -0,0 +1,118 @@
+package av;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out schedules to worker threads in chunks, without a global
+ * lock.  Schedules that have been generated wait in a lock-free
+ * queue.  A worker that finds the queue empty becomes the generator
+ * (at most one thread generates at a time, since the schedule
+ * iterator is sequential): it generates its own chunk and then
+ * refills the queue with another chunk, so the other workers can
+ * take schedules while it is verifying.  A worker that finds the
+ * queue empty while another generates waits until it is done.  The
+ * generator holds a lock of AMPVer apart from the one of the threads
+ * completing schedules, which take no lock to count them.
+ *
+ * Workers choose their own chunk size with adapt(): workers that are
+ * verifying cheap schedules take larger chunks, so they visit the
+ * dispenser less often, while expensive schedules are taken one at a
+ * time, so no worker holds on to work that another could be doing.
+ */
+public class ScheduleDispenser {
+
+  /** Largest chunk a worker will claim */
+  public final static int MAX_CHUNK = 256;
+
+  /** Target time (nanoseconds) to verify one chunk */
+  public final static long TARGET_CHUNK_TIME = 100000000L;
+
+  private AMPVer av;
+
+  /** Schedules generated but not yet claimed */
+  private ConcurrentLinkedQueue<Schedule> ready =
+    new ConcurrentLinkedQueue<>();
+
+  /** Is some thread generating schedules? */
+  private AtomicBoolean generating = new AtomicBoolean(false);
+
+  /** Has the schedule iterator been exhausted? */
+  private volatile boolean exhausted = false;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled when a thread stops generating */
+  private final Condition generated = lock.newCondition();
+
+  ScheduleDispenser(AMPVer av) {
+    this.av = av;
+  }
+
+  /** Moves up to n schedules from the ready queue into result. */
+  private int poll(int n, Collection<Schedule> result) {
+    int count = 0;
+    Schedule sched;
+    while (count < n && (sched = ready.poll()) != null) {
+      result.add(sched);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Adds up to n schedules to result.  Returns the number added,
+   * which is 0 only if there are no more schedules or the run has
+   * been cancelled.
+   */
+  int claim(int n, Collection<Schedule> result) {
+    while (true) {
+      if (av.cancelled()) return 0;
+      int count = poll(n, result);
+      if (count > 0) return count;
+      if (exhausted) // schedules are queued before exhausted is set
+        return poll(n, result);
+      if (generating.compareAndSet(false, true)) {
+        try {
+          if (!exhausted) {
+            count = av.nextSchedules(n, result);
+            if (count < n || av.nextSchedules(n, ready) < n)
+              exhausted = true;
+          }
+        } finally {
+          lock.lock();
+          try {
+            generating.set(false);
+            generated.signalAll();
+          } finally {
+            lock.unlock();
+          }
+        }
+        if (count > 0) return count;
+      } else {
+        // another thread is generating: wait for it
+        lock.lock();
+        try {
+          while (generating.get() && ready.isEmpty() && !av.cancelled())
+            generated.awaitUninterruptibly();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the size of the next chunk for a worker that just
+   * verified a chunk of n schedules in the given time (nanoseconds)
+   * using chunk size chunk.  The result aims for a chunk that takes
+   * TARGET_CHUNK_TIME, but at most doubles each time.
+   */
+  static int adapt(int chunk, int n, long time) {
+    long mean = Math.max(1, time / Math.max(1, n));
+    long ideal = TARGET_CHUNK_TIME / mean;
+    return (int)Math.max(1, Math.min(MAX_CHUNK, Math.min(2L*chunk, ideal)));
+  }
+}
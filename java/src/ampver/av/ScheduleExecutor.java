@@ -0,0 +1,14 @@
+package av;
+
+/**
+ * A strategy for running the stages of verification for all of the
+ * schedules of a run.  The stages are defined by AMPVer: generation
+ * (nextSchedule), file emission (emitSchedule), and verification
+ * (verifySchedule).  An executor decides which threads perform them.
+ */
+public interface ScheduleExecutor {
+
+  /** Generates and verifies every schedule, returning when all are
+   * finished. */
+  void execute() throws InterruptedException;
+}
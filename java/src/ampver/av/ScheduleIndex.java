@@ -0,0 +1,186 @@
+package av;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Random access to the schedules of a StratifiedScheduleIterator by
+ * ID, where the ID of a schedule is its position in the sequence
+ * produced by a new iterator (starting from 0).  The ID of a schedule
+ * is its rank; finding the schedule with a given ID is unranking.
+ *
+ * Neither requires enumerating the schedules.  The number of
+ * schedules in each stratum is computed once, by enumerating the
+ * kinds of the stratum and counting the schedules of each kinds with
+ * countKinds.  To unrank, the strata and then the kinds of one
+ * stratum are skipped using these counts, and the schedule is
+ * selected within its kinds by unrankKinds.  The cost is
+ * proportional to the number of strata and kinds, which is small
+ * compared to the number of schedules.
+ */
+public class ScheduleIndex {
+
+  public final static PrintStream out = System.out;
+
+  /** The iterator whose schedules are indexed */
+  private StratifiedScheduleIterator iter;
+
+  /** The strata of iter */
+  private List<int[]> strata;
+
+  /** counts[k] is the number of schedules in stratum k, or -1 if it
+   * has not been computed */
+  private long[] counts;
+
+  ScheduleIndex(StratifiedScheduleIterator iter) {
+    this.iter = iter;
+    strata = iter.strata();
+    counts = new long[strata.size()];
+    Arrays.fill(counts, -1);
+  }
+
+  /** Returns the number of strata. */
+  int nstrata() {
+    return counts.length;
+  }
+
+  /** Returns stratum k, an element of
+   * StratifiedScheduleIterator.strata(). */
+  int[] stratum(int k) {
+    return strata.get(k);
+  }
+
+  /** Returns the number of schedules in stratum k. */
+  synchronized long count(int k) {
+    if (counts[k] < 0) {
+      StratifiedScheduleIterator s = iter.stratum(strata.get(k));
+      long count = 0;
+      if (s.hasNext()) {
+        do {
+          count = Math.addExact(count, s.countKinds());
+        } while (s.nextKinds());
+      }
+      counts[k] = count;
+    }
+    return counts[k];
+  }
+
+  /** Returns the total number of schedules. */
+  long count() {
+    long result = 0;
+    for (int k=0; k<counts.length; k++)
+      result = Math.addExact(result, count(k));
+    return result;
+  }
+
+  /**
+   * Divides the schedules into n ranges of consecutive IDs with about
+   * equal total cost, as estimated by CostModel.  Returns an array b
+   * of length n+1: range i is the IDs b[i]..b[i+1]-1.  The result
+   * depends only on the schedules, so independent processes compute
+   * the same ranges.
+   */
+  long[] shardBounds(int n) {
+    double total = 0;
+    for (int k=0; k<counts.length; k++)
+      total += count(k) * CostModel.stratumCost(strata.get(k));
+    long[] result = new long[n+1];
+    double cost = 0; // cost of strata before stratum k
+    long first = 0; // first ID in stratum k
+    int i = 1;
+    for (int k=0; k<counts.length; k++) {
+      long count = count(k);
+      double c = CostModel.stratumCost(strata.get(k));
+      while (i < n && cost + count*c >= total*i/n) {
+        long offset = (long)Math.ceil((total*i/n - cost)/c);
+        result[i++] = first + Math.min(Math.max(offset, 0), count);
+      }
+      cost += count*c;
+      first += count;
+    }
+    while (i <= n)
+      result[i++] = first;
+    return result;
+  }
+
+  /** Returns an iterator positioned at the schedule with the given
+   * ID, which ends at the end of the stratum of that schedule.
+   * Returns null if there is no such schedule. */
+  StratifiedScheduleIterator seek(long id) {
+    if (id < 0) return null;
+    for (int k=0; k<counts.length; k++) {
+      long count = count(k);
+      if (id < count) {
+        StratifiedScheduleIterator s = iter.stratum(strata.get(k));
+        for (long c = s.countKinds(); id >= c; c = s.countKinds()) {
+          id -= c;
+          s.nextKinds();
+        }
+        s.unrankKinds(id);
+        return s;
+      }
+      id -= count;
+    }
+    return null;
+  }
+
+  /** Returns the schedule with the given ID, with its id and cursor
+   * fields set, or null if there is no such schedule. */
+  Schedule get(int id) {
+    StratifiedScheduleIterator s = seek(id);
+    if (s == null) return null;
+    int[] cursor = s.getCursor();
+    Schedule result = s.next();
+    result.id = id;
+    result.cursor = cursor;
+    return result;
+  }
+
+  /** Returns the ID of the schedule at which an iterator has the
+   * given cursor. */
+  long rank(int[] cursor) {
+    long result = 0;
+    int k = 0;
+    while (!AVUtil.is_prefix(strata.get(k), cursor))
+      result += count(k++);
+    StratifiedScheduleIterator s = iter.stratum(strata.get(k));
+    // the stratum and kinds are the first 3+nthread+nstep entries:
+    int n = 3 + cursor[0] + cursor[1];
+    while (!Arrays.equals(s.getCursor(), 0, n, cursor, 0, n)) {
+      result += s.countKinds();
+      s.nextKinds();
+    }
+    s.setCursor(cursor);
+    return result + s.rankKinds();
+  }
+
+  /** Checks get and rank against the sequence produced by a new
+   * iterator. */
+  static void test(StratifiedScheduleIterator iter) {
+    ScheduleIndex index = new ScheduleIndex(iter.stratum(null));
+    int id = 0;
+    while (iter.hasNext()) {
+      int[] cursor = iter.getCursor();
+      iter.next();
+      assert Arrays.equals(index.get(id).cursor, cursor);
+      assert index.rank(cursor) == id;
+      id++;
+    }
+    assert index.count() == id;
+    assert index.get(id) == null;
+    out.println(id+" schedules indexed.");
+  }
+
+  public final static void main(String[] args) {
+    test(new SetScheduleIterator(1,3,1,4,0,2,2,true));
+    test(new SetScheduleIterator(1,2,1,3,0,1,3,false));
+    test(new QueueScheduleIterator(1,3,1,4,0,1,true,true,true));
+    test(new QueueScheduleIterator(1,3,1,3,0,1,false,false,true));
+    test(new QueueScheduleIterator(1,2,1,3,0,1,false,false,false));
+    test(new PQScheduleIterator(1,3,1,4,0,1,true,true,true,true,true));
+    test(new PQScheduleIterator(1,2,1,3,0,1,false,false,false,true,false));
+    test(new PQScheduleIterator(2,3,2,4,0,1,false,true,false,true,false));
+    test(new PQScheduleIterator(1,2,1,3,0,1,true,false,true,false,false));
+    out.println("All tests pass.");
+  }
+}
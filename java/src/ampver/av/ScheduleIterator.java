@@ -0,0 +1,17 @@
+package av;
+import java.util.Iterator;
+
+/**
+ * An iterator over schedules that can report its position.  The
+ * position is the state of the counters of the iterator (nthread,
+ * nstep, npreAdd, partition, kinds, ...), encoded as an array of ints
+ * called a cursor, which is saved in the checkpoint of a run.  Some
+ * iterators can also be moved to a cursor (SeekableScheduleIterator),
+ * and some can be divided into strata (StratifiedScheduleIterator).
+ */
+public interface ScheduleIterator extends Iterator<Schedule> {
+
+  /** Returns the cursor for the current position.  The iterator
+   * must have a next schedule. */
+  int[] getCursor();
+}
@@ -0,0 +1,64 @@
+package av;
+
+/**
+ * The result of one schedule of a Verification, as published to its
+ * subscribers: the ID and text of the schedule, the verdict, and what
+ * CIVL printed.
+ */
+public class ScheduleResult {
+
+  /** The verdict on a schedule */
+  public static enum Verdict {
+    PASS, // CIVL found no error
+    FAIL, // CIVL found an error
+    TIMEOUT, // stopped for exceeding the time budget
+    MEMOUT, // stopped for exceeding the memory budget
+    CACHED, // passed in an earlier run (see ResultCache)
+    DRYRUN // not verified: a dry run
+  };
+
+  private final int id;
+
+  private final Verdict verdict;
+
+  private final String schedule;
+
+  private final String output;
+
+  ScheduleResult(int id, Verdict verdict, String schedule, String output) {
+    this.id = id;
+    this.verdict = verdict;
+    this.schedule = schedule;
+    this.output = output;
+  }
+
+  /** The ID of the schedule, as in the schedule_ID files of collect */
+  public int id() {
+    return id;
+  }
+
+  public Verdict verdict() {
+    return verdict;
+  }
+
+  /** Has the schedule passed, here or in an earlier run? */
+  public boolean passed() {
+    return verdict == Verdict.PASS || verdict == Verdict.CACHED;
+  }
+
+  /** The text of the schedule: the CIVL program that was verified */
+  public String schedule() {
+    return schedule;
+  }
+
+  /** What CIVL printed, or null if CIVL was not run on the schedule
+   * alone: it was CACHED, a DRYRUN, or passed in a batch (-batch) */
+  public String output() {
+    return output;
+  }
+
+  @Override
+  public String toString() {
+    return "schedule "+id+": "+verdict;
+  }
+}
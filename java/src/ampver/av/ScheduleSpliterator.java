@@ -0,0 +1,106 @@
+package av;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the schedules of a StratifiedScheduleIterator,
+ * which splits on the strata of the iterator.  Each stratum is
+ * enumerated by its own iterator, so the parts of a split can be
+ * traversed in parallel.  The encounter order is the order of
+ * the sequential iterator.
+ *
+ * Each schedule returned has its cursor field set to the cursor at
+ * which the sequential iterator would produce it, so the progress of
+ * a parallel enumeration can be checkpointed.
+ */
+public class ScheduleSpliterator implements Spliterator<Schedule> {
+
+  /** The iterator whose schedules are enumerated */
+  private StratifiedScheduleIterator source;
+
+  /** All strata of source */
+  private List<int[]> strata;
+
+  /** Index in strata of the next stratum to enumerate */
+  private int lo;
+
+  /** One more than the index of the last stratum to enumerate */
+  private int hi;
+
+  /** Iterator over the stratum being enumerated, or null */
+  private StratifiedScheduleIterator current;
+
+  /** Creates a spliterator over the remaining schedules of iter. */
+  ScheduleSpliterator(StratifiedScheduleIterator iter) {
+    source = iter;
+    strata = iter.strata();
+    hi = strata.size();
+    if (!iter.hasNext()) {
+      lo = hi;
+      return;
+    }
+    int[] cursor = iter.getCursor();
+    lo = 0;
+    while (!AVUtil.is_prefix(strata.get(lo), cursor))
+      lo++;
+    current = iter.stratum(strata.get(lo));
+    current.setCursor(cursor);
+    lo++;
+  }
+
+  private ScheduleSpliterator(StratifiedScheduleIterator source,
+                              List<int[]> strata, int lo, int hi,
+                              StratifiedScheduleIterator current) {
+    this.source = source;
+    this.strata = strata;
+    this.lo = lo;
+    this.hi = hi;
+    this.current = current;
+  }
+
+  public boolean tryAdvance(Consumer<? super Schedule> action) {
+    while (current == null || !current.hasNext()) {
+      if (lo >= hi) {
+        current = null;
+        return false;
+      }
+      current = source.stratum(strata.get(lo++));
+    }
+    int[] cursor = current.getCursor();
+    Schedule sched = current.next();
+    sched.cursor = cursor;
+    action.accept(sched);
+    return true;
+  }
+
+  /**
+   * Splits off a spliterator over the schedules of the stratum being
+   * enumerated (if any) and the next n strata.  Returns null if
+   * there is nothing left to enumerate.
+   */
+  ScheduleSpliterator prefix(int n) {
+    if (current == null && lo >= hi) return null;
+    int mid = Math.min(lo + n, hi);
+    ScheduleSpliterator result =
+      new ScheduleSpliterator(source, strata, lo, mid, current);
+    lo = mid;
+    current = null;
+    return result;
+  }
+
+  public Spliterator<Schedule> trySplit() {
+    int n = hi - lo;
+    if (n == 0 || (n == 1 && current == null)) return null;
+    return prefix(n/2);
+  }
+
+  /** The number of schedules is not known in advance. */
+  public long estimateSize() {
+    return Long.MAX_VALUE;
+  }
+
+  public int characteristics() {
+    return ORDERED | NONNULL;
+  }
+}
@@ -0,0 +1,15 @@
+package av;
+
+/**
+ * A schedule iterator whose position can be restored.  If getCursor
+ * is called on an iterator, and later setCursor is called with that
+ * cursor on an iterator constructed with the same parameters, the
+ * schedules returned by the second iterator from that point on will
+ * be the same as those returned by the first.
+ */
+public interface SeekableScheduleIterator extends ScheduleIterator {
+
+  /** Moves this iterator to the position specified by cursor.  If
+   * cursor is null, moves this iterator past the last schedule. */
+  void setCursor(int[] cursor);
+}
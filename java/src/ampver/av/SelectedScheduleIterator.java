@@ -0,0 +1,42 @@
+package av;
+
+/**
+ * An iterator over the schedules with given IDs, in increasing order
+ * of ID.  Each schedule is found with a ScheduleIndex, without
+ * enumerating the schedules in between.  The schedules returned have
+ * their id fields set.  The cursor is the number of schedules already
+ * returned.
+ */
+public class SelectedScheduleIterator implements SeekableScheduleIterator {
+
+  private ScheduleIndex index;
+
+  /** The IDs of the schedules to return, in increasing order */
+  private int[] ids;
+
+  /** Index in ids of the next schedule */
+  private int pos = 0;
+
+  SelectedScheduleIterator(ScheduleIndex index, int[] ids) {
+    this.index = index;
+    this.ids = ids;
+  }
+
+  public boolean hasNext() {
+    return pos < ids.length;
+  }
+
+  public Schedule next() {
+    if (pos >= ids.length) return null;
+    return index.get(ids[pos++]);
+  }
+
+  public int[] getCursor() {
+    assert hasNext();
+    return new int[] { pos };
+  }
+
+  public void setCursor(int[] cursor) {
+    pos = cursor == null ? ids.length : cursor[0];
+  }
+}
@@ -0,0 +1,341 @@
+package av;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static av.Log.Level;
+
+/**
+ * A daemon (-serve=SOCKET) that verifies the jobs of its clients, so
+ * that a short run of collect does not pay for starting a JVM,
+ * loading CIVL and compiling it again.  The daemon listens on a
+ * Unix-domain socket; a client is collect with -connect=SOCKET, which
+ * sends the rest of its command line to the daemon and prints what
+ * the daemon sends back, as it comes, and exits with the exit status
+ * of the job.  The client does nothing else, so it starts quickly.
+ *
+ * Each job is an AMPVer, run in a thread of its own, whose output
+ * (and messages, see Log.setOutput) and errors go to its client.
+ * Relative file names on the command line of a job are relative to
+ * the working directory of the client.  Jobs run at the same time,
+ * sharing one Governor of ncore permits (the -ncore of the daemon,
+ * adjusted with -adaptive), as the runs of a campaign do; a job's own
+ * -ncore is the number of its verification threads.  An error in the
+ * command line of a job ends the job, not the daemon; a client that
+ * goes away (e.g., on Ctrl-C) cancels its job.  -campaign, -serve
+ * and -worker are not jobs.  An error that ends collect during a run,
+ * such as a full disk, ends only the job.
+ *
+ * The client sends its working directory, the number of arguments and
+ * the arguments, each string as by DataOutputStream.writeUTF.  The
+ * daemon sends frames: OUT or ERR followed by an int length and that
+ * many bytes of output or errors, until EXIT followed by the int exit
+ * status.
+ */
+public class Server {
+
+  /** Kinds of frame sent by the daemon */
+  final static byte OUT = 'o', ERR = 'e', EXIT = 'x';
+
+  /** Returned by run for a job whose command line is rejected, whose
+   * client is sent exit code 1 */
+  private final static int REJECTED = -1;
+
+  /** The socket file */
+  private final File socket;
+
+  /** Number of runs of CIVL the jobs may have in progress at once */
+  private final int ncore;
+
+  private final boolean adaptive;
+
+  /** Shares the cores among the jobs */
+  private final Governor governor;
+
+  /** The jobs in progress */
+  private final Set<AMPVer> jobs = ConcurrentHashMap.newKeySet();
+
+  /** Number of jobs started */
+  private final AtomicInteger njob = new AtomicInteger(0);
+
+  /** Number of schedules completed by the jobs that have ended */
+  private final AtomicLong ncompleted = new AtomicLong(0);
+
+  Server(File socket, int ncore, boolean adaptive) {
+    this.socket = socket;
+    this.ncore = ncore;
+    this.adaptive = adaptive;
+    if (adaptive)
+      governor = new Governor(ncore, () -> {
+          long result = ncompleted.get();
+          for (AMPVer job : jobs)
+            result += job.ncompleted();
+          return result;
+        });
+    else
+      governor = new Governor(ncore);
+  }
+
+  /** Reads from channel directly: the stream of Channels.newInputStream
+   * would hold a lock of the channel while blocked in read, keeping
+   * the job from writing to the channel. */
+  private static InputStream input(SocketChannel channel) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return channel.read(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  /** Writes to channel directly (see input). */
+  private static OutputStream output(SocketChannel channel) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+      }
+    };
+  }
+
+  /** Sends what is written to it to the client as frames of one kind.
+   * Once the client is gone, what is written is dropped. */
+  private static class FrameStream extends OutputStream {
+    /** The stream to the client, on which the frames of a job are
+     * synchronized */
+    private final DataOutputStream to;
+    private final byte kind;
+
+    FrameStream(DataOutputStream to, byte kind) {
+      this.to = to;
+      this.kind = kind;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (len == 0) return;
+      synchronized (to) {
+        try {
+          to.writeByte(kind);
+          to.writeInt(len);
+          to.write(b, off, len);
+          to.flush();
+        } catch (IOException e) {
+          // the client is gone: its job is cancelled (see handle)
+        }
+      }
+    }
+  }
+
+  /** Listens for clients until the JVM is stopped.  Returns the exit
+   * code of collect if the socket cannot be opened. */
+  int serve() {
+    UnixDomainSocketAddress address =
+      UnixDomainSocketAddress.of(socket.toPath());
+    try {
+      SocketChannel.open(address).close();
+      System.err.println("collect: a daemon is already serving "+socket);
+      return 1;
+    } catch (IOException e) {
+      // no daemon: the socket file, if any, is left from one that died
+    }
+    ServerSocketChannel channel;
+    try {
+      Files.deleteIfExists(socket.toPath());
+      channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      channel.bind(address);
+    } catch (IOException e) {
+      System.err.println("collect: could not serve "+socket+": "+e);
+      return 1;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(socket::delete));
+    if (adaptive)
+      governor.start();
+    System.out.println("Serving "+socket+" on "+ncore+" cores"+
+                       (adaptive ? " (adaptive)" : ""));
+    while (true) {
+      try {
+        SocketChannel client = channel.accept();
+        int id = njob.incrementAndGet();
+        Thread t = new Thread(() -> handle(client, id), "job "+id);
+        t.start();
+      } catch (IOException e) {
+        Log.log(Level.RESULT, "Could not accept a client: "+e);
+      }
+    }
+  }
+
+  /** Reads the job of client, runs it, sends its results, and
+   * cancels it if the client goes away first. */
+  private void handle(SocketChannel client, int id) {
+    try (client) {
+      DataInputStream in = new DataInputStream
+        (new BufferedInputStream(input(client)));
+      DataOutputStream to = new DataOutputStream
+        (new BufferedOutputStream(output(client), 1 << 16));
+      File dir = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i=0; i<args.length; i++)
+        args[i] = in.readUTF();
+      PrintStream out = new PrintStream
+        (new BufferedOutputStream(new FrameStream(to, OUT), 1 << 16));
+      PrintStream err = new PrintStream(new FrameStream(to, ERR), true);
+      AMPVer av = new AMPVer(out, err, dir);
+      av.exitOnError = false;
+      Log.log(Level.PROGRESS, "Job "+id+" in "+dir+": "+String.join(" ", args));
+      AtomicBoolean finished = new AtomicBoolean(false);
+      Thread job = new Thread(() -> {
+          long start = System.nanoTime();
+          int code = run(av, args);
+          finished.set(true);
+          synchronized (to) {
+            try {
+              to.writeByte(EXIT);
+              to.writeInt(code == REJECTED ? 1 : code);
+              to.flush();
+            } catch (IOException e) {
+              // the client is gone
+            }
+          }
+          Log.log(Level.PROGRESS, "Job "+id+" finished: "+
+                  (code == REJECTED ? "rejected (usage error)" :
+                   Campaign.verdict(code))+", "+av.total()+" schedules, "+
+                  String.format("%.1f", (System.nanoTime()-start)/1e9)+" s");
+        }, "job "+id+" run");
+      job.start();
+      // The client sends nothing more; it closes its end when it has
+      // the exit status, or when it is stopped.
+      while (in.read() >= 0)
+        ;
+      if (!finished.get())
+        av.cancel("the client of job "+id+" is gone");
+      job.join();
+    } catch (EOFException e) {
+      Log.log(Level.RESULT, "Job "+id+": incomplete request");
+    } catch (IOException e) {
+      Log.log(Level.RESULT, "Job "+id+": "+e);
+    } catch (InterruptedException e) {
+      Log.log(Level.RESULT, "Job "+id+" interrupted");
+    }
+  }
+
+  /** Runs the job av with command line args, in the calling thread,
+   * returning its exit code, or REJECTED if args are rejected. */
+  private int run(AMPVer av, String[] args) {
+    Log.setOutput(av.out);
+    av.out.println("COLLECT Verifier v0.1");
+    try {
+      for (String arg : args)
+        if (arg.startsWith("-campaign") || arg.startsWith("-serve") ||
+            arg.startsWith("-worker"))
+          throw new IllegalArgumentException
+            (arg+" cannot be used with -connect");
+      av.parseCommandLine(args);
+      av.share(governor);
+      jobs.add(av);
+      return av.run(args);
+    } catch (IllegalArgumentException e) {
+      Log.flush();
+      av.errOut.println(e.getMessage());
+      av.printUsage(av.errOut);
+      return REJECTED;
+    } catch (UncheckedIOException e) {
+      Log.flush();
+      av.errOut.println(e.getCause());
+      return 1;
+    } catch (Throwable e) {
+      Log.flush();
+      e.printStackTrace(av.errOut);
+      return 1;
+    } finally {
+      if (jobs.remove(av))
+        ncompleted.addAndGet(av.ncompleted());
+      Log.flush();
+      av.out.flush();
+      Log.setOutput(null);
+    }
+  }
+
+  /**
+   * The client: sends args, the command line of collect, but for
+   * -connect, to the daemon on socket, and prints its output and
+   * errors.  Returns the exit status of the job.
+   */
+  static int connect(String socket, String[] args) {
+    try (SocketChannel channel =
+           SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      DataOutputStream to = new DataOutputStream
+        (new BufferedOutputStream(output(channel)));
+      to.writeUTF(System.getProperty("user.dir"));
+      int n = 0;
+      for (String arg : args)
+        if (!arg.startsWith("-connect=")) n++;
+      to.writeInt(n);
+      for (String arg : args)
+        if (!arg.startsWith("-connect="))
+          to.writeUTF(arg);
+      to.flush();
+      DataInputStream from = new DataInputStream
+        (new BufferedInputStream(input(channel), 1 << 16));
+      byte[] buffer = new byte[1 << 16];
+      while (true) {
+        byte kind = from.readByte();
+        if (kind == EXIT)
+          return from.readInt();
+        int length = from.readInt();
+        PrintStream stream = kind == OUT ? System.out : System.err;
+        while (length > 0) {
+          int k = Math.min(length, buffer.length);
+          from.readFully(buffer, 0, k);
+          stream.write(buffer, 0, k);
+          length -= k;
+        }
+        stream.flush();
+      }
+    } catch (EOFException e) {
+      System.err.println("collect: the daemon on "+socket+
+                         " ended the job without an exit status");
+      return 1;
+    } catch (IOException e) {
+      System.err.println("collect: could not reach a daemon on "+socket+
+                         ": "+e.getMessage());
+      return 1;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package av;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.io.PrintStream;
 import static av.Step.Op;
 import static av.Schedule.DSKind.*;
@@ -33,7 +34,7 @@ import static av.Schedule.DSKind.*;
  * (5) kinds: sequence of A/R/C for all steps
  * (6) value sequence for all steps
  */
-public class SetScheduleIterator implements Iterator<Schedule> {
+public class SetScheduleIterator implements StratifiedScheduleIterator {
     
   // Constants...
   public final static PrintStream out = System.out;
@@ -50,6 +51,10 @@ public class SetScheduleIterator implements Iterator<Schedule> {
     
   boolean hasNext = true;
 
+  /** If true, this iterator is restricted to one stratum: only
+   * kinds, values, ... are advanced.  See stratum(). */
+  boolean oneStratum = false;
+
   /** Number of threads in current schedule */
   int nthread;
 
@@ -86,6 +91,10 @@ public class SetScheduleIterator implements Iterator<Schedule> {
    *  arg for the j-th operation of thread i. */
   int[][] values;
 
+  /** start for the schedules with the current npreAdd and
+   * partition (see Schedule.start) */
+  int[] start;
+
   // Constructor...
     
   /**
@@ -115,8 +124,7 @@ public class SetScheduleIterator implements Iterator<Schedule> {
     this.npreAdd_hi = npreAdd_hi;
     this.threadSym = threadSym;
     this.valueBound = valueBound;
-    this.hasNext = init_nthread() && init_nstep() && init_npreAdd()
-      && init_partition() && init_kinds() && init_values();
+    this.hasNext = first();
   }
 
   void print_state(PrintStream out) {
@@ -201,9 +209,10 @@ public class SetScheduleIterator implements Iterator<Schedule> {
     for (int i=0; i<nthread-1; i++)
       partition_stutter[i] = (partition[i] == partition[i+1]);
     for (int i=0; i<nthread; i++) {
-      values[i] = new int[partition[i]];
-      kinds[i] = new int[partition[i]];
+      values[i] = AVUtil.resize(values[i], partition[i]);
+      kinds[i] = AVUtil.resize(kinds[i], partition[i]);
     }
+    start = Schedule.start(npreAdd, partition);
   }
 
   // this partition has form m 1 1 ... 1.
@@ -271,6 +280,174 @@ public class SetScheduleIterator implements Iterator<Schedule> {
     return result;
   }
 
+  // Advancing...
+
+  // For each counter x: enter_x initializes x, advancing the counters
+  // above x until x can be initialized; adv_x increments x, carrying
+  // into the counters above x when x cannot be incremented.  Both
+  // return false if there is no such state.
+
+  /** Moves to the first schedule.  Returns false if there is none. */
+  boolean first() {
+    return init_nthread() && enter_nstep() &&
+      enter_npreAdd() && enter_partition() && enter_kinds() &&
+      enter_values();
+  }
+
+  boolean adv_nthread() {
+    return inc_nthread();
+  }
+
+  boolean enter_nstep() {
+    while (!init_nstep())
+      if (!adv_nthread()) return false;
+    return true;
+  }
+
+  boolean adv_nstep() {
+    return inc_nstep() || (adv_nthread() && enter_nstep());
+  }
+
+  boolean enter_npreAdd() {
+    while (!init_npreAdd())
+      if (!adv_nstep()) return false;
+    return true;
+  }
+
+  boolean adv_npreAdd() {
+    return inc_npreAdd() || (adv_nstep() && enter_npreAdd());
+  }
+
+  boolean enter_partition() {
+    while (!init_partition())
+      if (!adv_npreAdd()) return false;
+    return true;
+  }
+
+  /** If this iterator is restricted to one stratum, partition cannot
+   * be advanced. */
+  boolean adv_partition() {
+    if (oneStratum) return false;
+    return inc_partition() || (adv_npreAdd() && enter_partition());
+  }
+
+  boolean enter_kinds() {
+    while (!init_kinds())
+      if (!adv_partition()) return false;
+    return true;
+  }
+
+  boolean adv_kinds() {
+    return inc_kinds() || (adv_partition() && enter_kinds());
+  }
+
+  boolean enter_values() {
+    while (!init_values())
+      if (!adv_kinds()) return false;
+    return true;
+  }
+
+  boolean adv_values() {
+    return inc_values() || (adv_kinds() && enter_values());
+  }
+
+  // Strata...
+
+  public List<int[]> strata() {
+    SetScheduleIterator iter = stratum(null);
+    List<int[]> result = new ArrayList<>();
+    boolean more = iter.init_nthread() && iter.enter_nstep() &&
+      iter.enter_npreAdd() && iter.enter_partition();
+    while (more) {
+      int[] stratum = new int[3+iter.nthread];
+      stratum[0] = iter.nthread;
+      stratum[1] = iter.nstep;
+      stratum[2] = iter.npreAdd;
+      System.arraycopy(iter.partition, 0, stratum, 3, iter.nthread);
+      result.add(stratum);
+      more = iter.adv_partition();
+    }
+    return result;
+  }
+
+  /** Returns a new iterator over the schedules of stratum, which is
+   * an element of strata().  If stratum is null, returns a new
+   * iterator over all schedules, from the first. */
+  public SetScheduleIterator stratum(int[] stratum) {
+    if (stratum == null)
+      return new SetScheduleIterator
+        (nthread_lo, nthread_hi, nstep_lo, nstep_hi, npreAdd_lo, npreAdd_hi,
+         valueBound, threadSym);
+    int nthread = stratum[0], nstep = stratum[1], npreAdd = stratum[2];
+    SetScheduleIterator result = new SetScheduleIterator
+      (nthread, nthread, nstep, nstep, npreAdd, npreAdd,
+       valueBound, threadSym);
+    result.oneStratum = true;
+    System.arraycopy(stratum, 3, result.partition, 0, nthread);
+    result.compute_partition_arrays();
+    result.hasNext = result.enter_kinds() && result.enter_values();
+    return result;
+  }
+
+  // Ranking...
+
+  public long countKinds() {
+    return AVUtil.count_lex_2d_sym(valueBound, values,
+                                   threadSym ? kinds_stutter : null);
+  }
+
+  public long rankKinds() {
+    return AVUtil.rank_lex_2d_sym(valueBound, values,
+                                  threadSym ? kinds_stutter : null);
+  }
+
+  public void unrankKinds(long r) {
+    AVUtil.unrank_lex_2d_sym(valueBound, r, values,
+                             threadSym ? kinds_stutter : null);
+    hasNext = true;
+  }
+
+  public boolean nextKinds() {
+    return hasNext = adv_kinds() && enter_values();
+  }
+
+  /** The cursor consists of nthread, nstep, npreAdd, partition,
+   * then kinds and values, flattened. */
+  public int[] getCursor() {
+    assert hasNext;
+    int[] cursor = new int[3+nthread+2*nstep];
+    int k = 0;
+    cursor[k++] = nthread;
+    cursor[k++] = nstep;
+    cursor[k++] = npreAdd;
+    for (int i=0; i<nthread; i++)
+      cursor[k++] = partition[i];
+    k = AVUtil.flatten(kinds, cursor, k);
+    k = AVUtil.flatten(values, cursor, k);
+    assert k == cursor.length;
+    return cursor;
+  }
+
+  public void setCursor(int[] cursor) {
+    if (cursor == null) {
+      hasNext = false;
+      return;
+    }
+    int k = 0;
+    nthread = cursor[k++];
+    allocate_nthread_arrays();
+    nstep = cursor[k++];
+    npreAdd = cursor[k++];
+    for (int i=0; i<nthread; i++)
+      partition[i] = cursor[k++];
+    compute_partition_arrays();
+    k = AVUtil.unflatten(cursor, k, kinds);
+    compute_kinds_arrays();
+    k = AVUtil.unflatten(cursor, k, values);
+    assert k == cursor.length;
+    hasNext = true;
+  }
+
   public boolean hasNext() {
     return hasNext;
   }
@@ -281,49 +458,19 @@ public class SetScheduleIterator implements Iterator<Schedule> {
     Schedule result = new Schedule(SET);
     result.nthread = nthread;
     result.nstep = nstep;
-    result.presteps = new Step[npreAdd];
+    result.npreAdd = npreAdd;
+    result.start = start;
+    int[] code = result.code = new int[npreAdd+nstep];
+    int k = 0;
     for (int i=0; i<npreAdd; i++)
-      result.presteps[i] = new Step(Op.ADD, i);
-    result.steps = new Step[nthread][];
+      code[k++] = Step.pack(Op.ADD, i, Step.UNDEF);
     for (int i=0; i<nthread; i++) {
-      int count = 0; // number of ADDs for thread i
       int m = partition[i];
-      result.steps[i] = new Step[m];
-      for (int j=0; j<m; j++) {
-        Op op;
-        switch (kinds[i][j]) {
-        case 0: op=Op.ADD; break;
-        case 1: op=Op.REMOVE; break;
-        case 2: op=Op.CONTAINS; break;
-        default: throw new RuntimeException("unreachable");
-        }
-        result.steps[i][j] = new Step(op, values[i][j]);
-      }
-    }
-    if (!inc_values()) {
-      do {
-        if (!inc_kinds()) {
-          do {
-            if (!inc_partition()) {
-              do {
-                if (!inc_npreAdd()) {
-                  do {
-                    if (!inc_nstep()) {
-                      do {
-                        if (!inc_nthread()) {
-                          hasNext = false;
-                          return result;
-                        }
-                      } while (!init_nstep());
-                    }
-                  } while (!init_npreAdd());
-                }
-              } while (!init_partition());
-            }
-          } while (!init_kinds());
-        }
-      } while (!init_values());
+      for (int j=0; j<m; j++) // kinds are the ordinals of the ops
+        code[k++] = Step.pack(Step.OPS[kinds[i][j]], values[i][j],
+                              Step.UNDEF);
     }
+    hasNext = adv_values();
     return result;
   }
 
@@ -0,0 +1,263 @@
+package av;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The outcome of a run over one shard of the schedules (-shard=i/n).
+ * The schedules are divided into n ranges of consecutive IDs by
+ * ScheduleIndex.shardBounds, so the shards can be verified by
+ * independent processes, on one machine or many, without any
+ * coordination.  Each writes its summary to a file named "summary"
+ * in its temporary directory when it finishes, and the summaries of
+ * all n shards are combined into the verdict for the whole run by
+ * merge (-merge DIR...).
+ *
+ * The file is a sequence of lines of the form key=value:
+ *
+ * <pre>
+ * config=kind=set nthread=1..3 ... verify -userIncludePath=...
+ * shard=1/4
+ * first=1520
+ * end=3107
+ * schedules=1587
+ * failed=1733 1790
+ * timeout=2950
+ * time=41.3
+ * </pre>
+ *
+ * The config does not include the shard.  The shard has the
+ * schedules with IDs first..end-1.  The failed line lists the
+ * schedules on which an error was detected, and the timeout and
+ * memout lines list the schedules that exceeded their budgets (see
+ * Watchdog); each is present only if there are any.
+ */
+public class ShardSummary {
+
+  /** Name of the summary file in the temporary directory */
+  public final static String FILENAME = "summary";
+
+  /** Description of the configuration of the run, without the shard */
+  String config;
+
+  /** Index of the shard, from 0 */
+  int shard;
+
+  /** Number of shards */
+  int nshard;
+
+  /** ID of the first schedule of the shard */
+  long first;
+
+  /** One more than the ID of the last schedule of the shard */
+  long end;
+
+  /** Number of schedules generated */
+  long schedules;
+
+  /** IDs of the schedules on which an error was detected */
+  TreeSet<Integer> failed = new TreeSet<>();
+
+  /** IDs of the schedules that exceeded the time budget */
+  TreeSet<Integer> timeout = new TreeSet<>();
+
+  /** IDs of the schedules that exceeded the memory budget */
+  TreeSet<Integer> memout = new TreeSet<>();
+
+  /** Time (seconds) taken by the run */
+  double time;
+
+  ShardSummary(String config, int shard, int nshard, long first, long end) {
+    this.config = config;
+    this.shard = shard;
+    this.nshard = nshard;
+    this.first = first;
+    this.end = end;
+  }
+
+  /** Writes the line key=IDS, unless ids is empty. */
+  private static void writeIds(PrintStream out, String key,
+                               TreeSet<Integer> ids) {
+    if (ids.isEmpty()) return;
+    out.print(key+"=");
+    boolean first = true;
+    for (int id : ids) {
+      if (first) first = false; else out.print(" ");
+      out.print(id);
+    }
+    out.println();
+  }
+
+  /** Adds the IDs in value, separated by spaces, to ids. */
+  private static void readIds(String value, TreeSet<Integer> ids) {
+    for (String word : value.trim().split(" +"))
+      ids.add(Integer.parseInt(word));
+  }
+
+  /** Writes this summary to the summary file in directory dir. */
+  void write(File dir) throws IOException {
+    File file = new File(dir, FILENAME);
+    File tmp = new File(dir, FILENAME+".tmp");
+    PrintStream out = new PrintStream(tmp);
+    out.println("config="+config);
+    out.println("shard="+shard+"/"+nshard);
+    out.println("first="+first);
+    out.println("end="+end);
+    out.println("schedules="+schedules);
+    writeIds(out, "failed", failed);
+    writeIds(out, "timeout", timeout);
+    writeIds(out, "memout", memout);
+    out.println("time="+time);
+    out.close();
+    if (out.checkError())
+      throw new IOException("Could not write "+tmp);
+    Files.move(tmp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Reads the summary file in directory dir.  Returns null if there
+   * is no such file. */
+  static ShardSummary read(File dir) throws IOException {
+    File file = new File(dir, FILENAME);
+    if (!file.exists()) return null;
+    List<String> lines = Files.readAllLines(file.toPath());
+    ShardSummary result = new ShardSummary(null, -1, 0, 0, 0);
+    for (String line : lines) {
+      int eqidx = line.indexOf('=');
+      if (eqidx < 0)
+        throw new IOException("Malformed line in "+file+": "+line);
+      String key = line.substring(0, eqidx);
+      String value = line.substring(eqidx+1);
+      try {
+        switch (key) {
+        case "config":
+          result.config = value;
+          break;
+        case "shard": {
+          int slash = value.indexOf('/');
+          if (slash < 0)
+            throw new IOException("Malformed line in "+file+": "+line);
+          result.shard = Integer.parseInt(value.substring(0, slash));
+          result.nshard = Integer.parseInt(value.substring(slash+1));
+          break;
+        }
+        case "first":
+          result.first = Long.parseLong(value);
+          break;
+        case "end":
+          result.end = Long.parseLong(value);
+          break;
+        case "schedules":
+          result.schedules = Long.parseLong(value);
+          break;
+        case "failed":
+          readIds(value, result.failed);
+          break;
+        case "timeout":
+          readIds(value, result.timeout);
+          break;
+        case "memout":
+          readIds(value, result.memout);
+          break;
+        case "time":
+          result.time = Double.parseDouble(value);
+          break;
+        default:
+          throw new IOException("Unknown key in "+file+": "+key);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed line in "+file+": "+line);
+      }
+    }
+    if (result.config == null || result.shard < 0)
+      throw new IOException("Incomplete summary in "+file);
+    return result;
+  }
+
+  /**
+   * Combines the summaries in the given directories, which must be
+   * those of all shards of one run, and prints the verdict in the
+   * form of a run over all schedules.  Returns the exit status of
+   * that run: 0 if all tests pass, 2 if an error was detected, 3 if
+   * not but some schedules exceeded their budgets.
+   * Returns 1, after printing why, if the summaries are missing or
+   * do not fit together.
+   */
+  static int merge(List<File> dirs, PrintStream out) {
+    ShardSummary[] shards = null;
+    String config = null;
+    for (File dir : dirs) {
+      ShardSummary s;
+      try {
+        s = read(dir);
+      } catch (IOException e) {
+        out.println(e.getMessage());
+        return 1;
+      }
+      if (s == null) {
+        out.println("No shard summary in "+dir+
+                    ": the shard has not finished.");
+        return 1;
+      }
+      if (shards == null) {
+        shards = new ShardSummary[s.nshard];
+        config = s.config;
+      }
+      if (s.nshard != shards.length || !s.config.equals(config)) {
+        out.println("The shard in "+dir+" is from a different run:\n  "+
+                    s.config+" shard="+s.shard+"/"+s.nshard);
+        return 1;
+      }
+      if (shards[s.shard] != null) {
+        out.println("Shard "+s.shard+"/"+s.nshard+" given twice");
+        return 1;
+      }
+      shards[s.shard] = s;
+    }
+    long next = 0, schedules = 0, nexceeded = 0;
+    double time = 0;
+    boolean pass = true;
+    for (int i=0; i<shards.length; i++) {
+      ShardSummary s = shards[i];
+      if (s == null) {
+        out.println("Missing shard "+i+"/"+shards.length);
+        return 1;
+      }
+      if (s.first != next) {
+        out.println("Shard "+i+"/"+shards.length+" starts at schedule "+
+                    s.first+" but the previous shard ends at "+next);
+        return 1;
+      }
+      next = s.end;
+      schedules += s.schedules;
+      time = Math.max(time, s.time);
+      for (int id : s.failed) {
+        out.println("collect: error detected on schedule "+id+
+                    " (shard "+i+"/"+shards.length+").");
+        pass = false;
+      }
+      for (int id : s.timeout)
+        out.println("Schedule "+id+": TIMEOUT");
+      for (int id : s.memout)
+        out.println("Schedule "+id+": MEMOUT");
+      nexceeded += s.timeout.size() + s.memout.size();
+    }
+    out.println("Merged "+shards.length+" shards.");
+    if (nexceeded > 0)
+      out.println("Coverage: "+(schedules - nexceeded)+" of "+schedules+
+                  " schedules verified ("+
+                  AMPVer.percent(schedules - nexceeded, schedules)+"%).");
+    if (pass && nexceeded == 0)
+      out.println(schedules+" schedules generated.  All tests pass.");
+    else if (pass)
+      out.println(schedules+" schedules generated.  No errors detected, "+
+                  "but "+nexceeded+" schedules were not verified.");
+    out.println("Time (seconds) = "+time);
+    return !pass ? 2 : nexceeded > 0 ? 3 : 0;
+  }
+}
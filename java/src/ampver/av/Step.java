@@ -1,7 +1,12 @@
 package av;
 
 /** A Step represents one operation executed by a thread.  It is
- * either an ADD, REMOVE, or CONTAINS operation. */
+ * either an ADD, REMOVE, or CONTAINS operation.
+ *
+ * A step is packed in one int (see Schedule.code): bits 0-1 hold the
+ * ordinal of the operation, bits 2-15 the first argument plus 2, and
+ * bits 16-29 the second argument plus 2, so an UNDEF argument is
+ * 0.  The methods of this class pack and unpack steps. */
 public class Step {
 
     public final static int UNDEF = -2;
@@ -10,45 +15,44 @@ public class Step {
 	REMOVE,
 	CONTAINS
     };
-    
-    Op op;
-    int arg0 = UNDEF;
-    int arg1 = UNDEF; 
-    int result = UNDEF;
-    int start_time = UNDEF;
-    int stop_time = UNDEF;
-
-    Step(Op op) {
-	this.op = op;
+
+    /** The operations, by ordinal */
+    public final static Op[] OPS = Op.values();
+
+    /** Greatest argument that can be packed */
+    public final static int MAX_ARG = (1 << 14) - 3;
+
+    private Step() {
     }
 
-    Step(Op op, int arg0) {
-	this.op = op;
-	this.arg0 = arg0;
+    /** Returns the step op(arg0,arg1), packed.  Throws
+     * IllegalArgumentException if an argument is out of range. */
+    static int pack(Op op, int arg0, int arg1) {
+	if (arg0 < UNDEF || arg0 > MAX_ARG || arg1 < UNDEF || arg1 > MAX_ARG)
+	    throw new IllegalArgumentException
+		("Argument of "+op+"("+arg0+","+arg1+") out of range");
+	return op.ordinal() | (arg0 - UNDEF) << 2 | (arg1 - UNDEF) << 16;
     }
-    
-    Step(Op op, int arg0, int arg1) {
-	this.op = op;
-	this.arg0 = arg0;
-	this.arg1 = arg1;
+
+    /** Returns the operation of a packed step. */
+    static Op op(int step) {
+	return OPS[step & 3];
     }
-    
-
-    public String toString() {
-	String result;
-	switch (op) {
-	case ADD:
-	    result = "ADD(";
-	    break;
-	case REMOVE:
-	    result = "REMOVE(";
-	    break;
-	case CONTAINS:
-	    result = "CONTAINS(";
-	    break;
-	default:
-	    return "UNKNOWN";
-	}
+
+    /** Returns the first argument of a packed step, or UNDEF. */
+    static int arg0(int step) {
+	return ((step >>> 2) & 0x3fff) + UNDEF;
+    }
+
+    /** Returns the second argument of a packed step, or UNDEF. */
+    static int arg1(int step) {
+	return ((step >>> 16) & 0x3fff) + UNDEF;
+    }
+
+    /** Returns a packed step in the form ADD(1,2). */
+    static String toString(int step) {
+	String result = op(step)+"(";
+	int arg0 = arg0(step), arg1 = arg1(step);
 	if (arg0 != UNDEF) result += ""+arg0;
 	if (arg1 != UNDEF) result += ","+arg1;
 	result += ")";
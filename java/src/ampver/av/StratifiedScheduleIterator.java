@@ -0,0 +1,54 @@
+package av;
+import java.util.List;
+import java.util.Spliterator;
+
+/**
+ * A schedule iterator that generates the schedules in strata, as the
+ * iterators of each kind of collection do.
+ *
+ * A stratum is the set of schedules with given values of the outer
+ * counters nthread, nstep, npreAdd, and partition.  A stratum is
+ * encoded as an array of ints that is a prefix of the cursors of its
+ * schedules.  The strata can be enumerated independently, which is
+ * how the spliterator of an iterator divides its work.
+ *
+ * Within a stratum, the schedules with the same kinds (the sequence
+ * of operations, without arguments) are consecutive.  They can be
+ * counted, and one can be selected by its rank, without enumerating
+ * them; ScheduleIndex uses this to find a schedule by its ID.
+ */
+public interface StratifiedScheduleIterator extends SeekableScheduleIterator {
+
+  /** Returns all strata of this iterator, in order, including those
+   * that contain no schedule. */
+  List<int[]> strata();
+
+  /** Returns a new iterator over the schedules of stratum, which is
+   * an element of strata(), in the order this iterator would produce
+   * them.  If stratum is null, returns a new iterator over all
+   * schedules. */
+  StratifiedScheduleIterator stratum(int[] stratum);
+
+  /** Returns the number of schedules with the same stratum and kinds
+   * as the next schedule.  The iterator is not moved. */
+  long countKinds();
+
+  /** Returns the position of the next schedule among the schedules
+   * with the same stratum and kinds, starting from 0.  The iterator
+   * is not moved. */
+  long rankKinds();
+
+  /** Moves this iterator to the schedule at position r among the
+   * schedules with the same stratum and kinds as the next schedule. */
+  void unrankKinds(long r);
+
+  /** Moves this iterator to the first schedule with the next kinds.
+   * Returns false if there is none. */
+  boolean nextKinds();
+
+  /** Returns a spliterator over the remaining schedules of this
+   * iterator, in the same order.  This iterator is not moved. */
+  default Spliterator<Schedule> spliterator() {
+    return new ScheduleSpliterator(this);
+  }
+}
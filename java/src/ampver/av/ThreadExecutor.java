@@ -0,0 +1,73 @@
+package av;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The simplest executor: a fixed number of worker threads, each of
+ * which repeatedly claims a chunk of schedules from the dispenser
+ * and performs all stages for those schedules itself.  An exception
+ * thrown by a stage cancels the run, and is thrown again by execute
+ * once the other workers are finished.
+ */
+public class ThreadExecutor implements ScheduleExecutor {
+
+  private AMPVer av;
+
+  private ScheduleDispenser dispenser;
+
+  private int ncore;
+
+  /** The first exception thrown by a stage, or null */
+  private AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  ThreadExecutor(AMPVer av, ScheduleDispenser dispenser, int ncore) {
+    this.av = av;
+    this.dispenser = dispenser;
+    this.ncore = ncore;
+  }
+
+  class Worker extends Thread {
+    int wid = -1;
+
+    Worker(int wid) {
+      this.wid = wid;
+    }
+    
+    public void run() {
+      Log.log(Log.Level.TRACE, "Worker "+wid+" starting");
+      ArrayDeque<Schedule> chunk = new ArrayDeque<>();
+      int chunkSize = 1;
+      while (dispenser.claim(chunkSize, chunk) > 0) {
+        long start = System.nanoTime();
+        int n = chunk.size();
+        while (!chunk.isEmpty()) {
+          Schedule sched = chunk.poll();
+          av.printTask(wid, sched);
+          try {
+            av.executeSchedule(sched);
+          } catch (RuntimeException | Error e) {
+            if (failure.compareAndSet(null, e))
+              av.cancel("schedule "+sched.id+": "+e);
+          }
+        }
+        chunkSize =
+          ScheduleDispenser.adapt(chunkSize, n, System.nanoTime() - start);
+      }
+      Log.log(Log.Level.TRACE, "Worker "+wid+" terminating");
+    }
+  }
+  public void execute() throws InterruptedException {
+    Worker[] workers = new Worker[ncore];
+    for (int i=0; i<ncore; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+    for (int i=0; i<ncore; i++)
+      workers[i].join();
+    Throwable e = failure.get();
+    if (e instanceof Error)
+      throw (Error)e;
+    if (e != null)
+      throw (RuntimeException)e;
+  }
+}
@@ -0,0 +1,459 @@
+package av;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import static av.Log.Level;
+
+/**
+ * A run of collect for a program that embeds it: the API of this
+ * module.  A run is configured with a Builder, whose options are
+ * those of the command line of collect, and publishes the result of
+ * each schedule to its subscribers as it is found:
+ *
+ * <pre>
+ * Verification v = Verification.builder()
+ *   .kind("set").nthread(1, 2).nstep(1, 3).valueBound(2)
+ *   .option("inMemory", "true")
+ *   .source(new File("CoarseList.cvl"), new File("hash.cvl"))
+ *   .build();
+ * v.subscribe(subscriber);
+ * v.start();
+ * int code = v.await(); // as the exit status of collect
+ * </pre>
+ *
+ * Results are given to each subscriber in a thread of its own, in
+ * the order in which the schedules are finished (not the order of
+ * their IDs), as many as it has requested.  Up to BUFFER results
+ * wait for a subscriber; when its buffer is full, the verification
+ * threads wait for it, so a slow subscriber slows the run instead of
+ * filling the heap.  A subscriber that cancels its subscription
+ * receives no more results, and the run goes on.  When the run ends,
+ * each subscriber receives the results still buffered, then
+ * onComplete, or onError with the exception that ended the run.
+ * Subscribers should subscribe before start: results published before
+ * a subscriber subscribes are not given to it.
+ *
+ * The run itself is cancelled with cancel: no more schedules are
+ * verified, those in progress are completed and published, and the
+ * run ends with exit code 3 (unless an error was found).  The
+ * verification threads do not wait for subscribers once the run is
+ * cancelled, so a subscriber that requests nothing more cannot keep
+ * it from ending.
+ *
+ * The report that collect prints, and its messages (see Log), are
+ * written to the output given to the builder, if any.  An error in
+ * the options is thrown by build as an IllegalArgumentException; an
+ * error that ends collect during a run, such as a full disk, ends the
+ * run: it is given to the subscribers' onError, and await returns 1.
+ */
+public class Verification implements Flow.Publisher<ScheduleResult> {
+
+  /** Number of results that may wait for a subscriber */
+  public final static int BUFFER = 256;
+
+  /** The options of a Verification.  Each method sets an option of
+   * the command line of collect (see AMPVer.printUsage), and returns
+   * the builder. */
+  public static class Builder {
+
+    private ArrayList<String> args = new ArrayList<>();
+
+    private PrintStream out = null;
+
+    private Builder() {
+    }
+
+    /** Sets option -name=value of collect, e.g., option("childJVM",
+     * "true").  Options that do not verify (-count, -show, -merge,
+     * -campaign, -serve, -connect, -worker) are not allowed. */
+    public Builder option(String name, String value) {
+      switch (name) {
+      case "count": case "show": case "merge": case "campaign":
+      case "serve": case "connect": case "worker":
+        throw new IllegalArgumentException
+          ("-"+name+" cannot be used in a Verification");
+      default:
+        args.add("-"+name+"="+value);
+        return this;
+      }
+    }
+
+    /** The kind of collection: set, queue or pqueue */
+    public Builder kind(String kind) {
+      return option("kind", kind);
+    }
+
+    /** The synchronization protocol: nonblocking, bounded or sync */
+    public Builder spec(String spec) {
+      return option("spec", spec);
+    }
+
+    /** The consistency property: sc, linear or quiescent */
+    public Builder property(String property) {
+      return option("property", property);
+    }
+
+    public Builder valueBound(int bound) {
+      return option("valueBound", String.valueOf(bound));
+    }
+
+    public Builder nthread(int lo, int hi) {
+      return option("nthread", lo+".."+hi);
+    }
+
+    public Builder nstep(int lo, int hi) {
+      return option("nstep", lo+".."+hi);
+    }
+
+    public Builder npreAdd(int lo, int hi) {
+      return option("npreAdd", lo+".."+hi);
+    }
+
+    /** The number of verification threads */
+    public Builder ncore(int ncore) {
+      return option("ncore", String.valueOf(ncore));
+    }
+
+    /** The time budget of a schedule, in seconds (0 for none) */
+    public Builder timeout(int seconds) {
+      return option("timeout", String.valueOf(seconds));
+    }
+
+    /** The memory budget of a schedule, in megabytes (0 for none);
+     * requires option("childJVM", "true") */
+    public Builder memout(int megabytes) {
+      return option("memout", String.valueOf(megabytes));
+    }
+
+    /** The number of failing schedules after which the run stops */
+    public Builder maxFailures(int n) {
+      return option("maxFailures", String.valueOf(n));
+    }
+
+    /** The root directory of the COLLECT distribution */
+    public Builder root(File dir) {
+      return option("root", dir.getPath());
+    }
+
+    /** The directory of the files of the run; by default, a new
+     * directory in the working directory */
+    public Builder tmpDir(File dir) {
+      return option("tmpDir", dir.getPath());
+    }
+
+    /** Defines the preprocessor macro name as value */
+    public Builder define(String name, String value) {
+      return option("D"+name, value);
+    }
+
+    /** Adds source files of the implementation to verify */
+    public Builder source(File... files) {
+      for (File file : files) {
+        if (file.getPath().startsWith("-"))
+          file = file.getAbsoluteFile();
+        args.add(file.getPath());
+      }
+      return this;
+    }
+
+    /** Prints the report of the run, and its messages, to out.  By
+     * default they are discarded. */
+    public Builder output(PrintStream out) {
+      this.out = out;
+      return this;
+    }
+
+    /** Returns the run with these options, not yet started.  Throws
+     * IllegalArgumentException if the options are not valid. */
+    public Verification build() {
+      PrintStream stream = out != null ? out :
+        new PrintStream(OutputStream.nullOutputStream());
+      AMPVer av = new AMPVer(stream, stream, null);
+      av.exitOnError = false;
+      // -verbosity sets the level of the output of the run, starting
+      // from the default, not that of the caller, which is restored:
+      Log.Output caller = Log.output();
+      Log.setOutput(stream);
+      Log.setLevel(Level.PROGRESS);
+      try {
+        av.parseCommandLine(args.toArray(new String[0]));
+        return new Verification(av, Log.level());
+      } catch (IOException e) {
+        throw new IllegalArgumentException(e.getMessage(), e);
+      } finally {
+        Log.restoreOutput(caller);
+      }
+    }
+  }
+
+  /** Returns a builder of a Verification with the default options. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final AMPVer av;
+
+  /** The level of the messages of the run */
+  private final Level level;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled when results are added or taken, a subscriber
+   * requests more or cancels, or the run ends */
+  private final Condition changed = lock.newCondition();
+
+  private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+
+  /** Number of subscribers so far */
+  private final AtomicInteger nsubscriber = new AtomicInteger(0);
+
+  private Thread thread = null;
+
+  /** Has cancel been called? */
+  private boolean cancelled = false;
+
+  /** Has the run ended? */
+  private boolean ended = false;
+
+  /** The exception that ended the run, or null */
+  private Throwable failure = null;
+
+  /** The exit code of the run, once ended */
+  private int code = -1;
+
+  private Verification(AMPVer av, Level level) {
+    this.av = av;
+    this.level = level;
+    av.listener = this::publish;
+  }
+
+  /** The subscription of a subscriber, with the results it has not
+   * yet received */
+  private class Subscription implements Flow.Subscription {
+    final Flow.Subscriber<? super ScheduleResult> subscriber;
+    final ArrayDeque<ScheduleResult> buffer = new ArrayDeque<>();
+    /** Number of results requested and not yet given */
+    long demand = 0;
+    boolean cancelled = false;
+    /** A request that broke the rules, or null */
+    IllegalArgumentException invalid = null;
+
+    Subscription(Flow.Subscriber<? super ScheduleResult> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      lock.lock();
+      try {
+        if (n <= 0)
+          invalid = new IllegalArgumentException
+            ("non-positive request "+n+" (rule 3.9)");
+        else
+          demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      lock.lock();
+      try {
+        cancelled = true;
+        buffer.clear();
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Gives results to the subscriber as it requests them, in the
+     * calling thread, until it cancels or the run ends. */
+    void deliver() {
+      subscriber.onSubscribe(this);
+      while (true) {
+        ScheduleResult result;
+        Throwable error;
+        lock.lock();
+        try {
+          while (!cancelled && invalid == null &&
+                 (buffer.isEmpty() ? !ended : demand == 0))
+            changed.awaitUninterruptibly();
+          if (cancelled)
+            return;
+          if (invalid != null || buffer.isEmpty()) {
+            error = invalid != null ? invalid : failure;
+            cancelled = true;
+            buffer.clear();
+            changed.signalAll();
+            result = null;
+          } else {
+            result = buffer.poll();
+            demand--;
+            changed.signalAll();
+            error = null;
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (result != null)
+          subscriber.onNext(result);
+        else {
+          if (error != null)
+            subscriber.onError(error);
+          else
+            subscriber.onComplete();
+          return;
+        }
+      }
+    }
+  }
+
+  /** Adds subscriber, which is given the results published from now
+   * on, in a thread of its own. */
+  @Override
+  public void subscribe(Flow.Subscriber<? super ScheduleResult> subscriber) {
+    if (subscriber == null)
+      throw new NullPointerException("subscriber");
+    Subscription s = new Subscription(subscriber);
+    lock.lock();
+    try {
+      subscriptions.add(s);
+    } finally {
+      lock.unlock();
+    }
+    Thread t = new Thread(s::deliver,
+                          "subscriber "+nsubscriber.incrementAndGet());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** Gives result to each subscriber, waiting while the buffer of one
+   * is full, unless the run has been cancelled.  Called by the
+   * verification threads. */
+  private void publish(ScheduleResult result) {
+    lock.lock();
+    try {
+      while (!cancelled && full())
+        changed.awaitUninterruptibly();
+      for (Subscription s : subscriptions)
+        if (!s.cancelled)
+          s.buffer.add(result);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Is the buffer of a subscriber full?  Holds lock. */
+  private boolean full() {
+    for (Subscription s : subscriptions)
+      if (!s.cancelled && s.buffer.size() >= BUFFER)
+        return true;
+    return false;
+  }
+
+  /** Starts the run, in a thread of its own, and returns this. */
+  public Verification start() {
+    lock.lock();
+    try {
+      if (thread != null)
+        throw new IllegalStateException("Verification already started");
+      thread = new Thread(this::run, "verification");
+    } finally {
+      lock.unlock();
+    }
+    thread.start();
+    return this;
+  }
+
+  /** The run, in its own thread */
+  private void run() {
+    Log.setOutput(av.out);
+    Log.setLevel(level);
+    int result;
+    Throwable error = null;
+    try {
+      result = av.verify();
+    } catch (Throwable e) {
+      Log.flush();
+      e.printStackTrace(av.errOut);
+      result = 1;
+      error = e;
+    } finally {
+      Log.flush();
+      av.out.flush();
+      Log.setOutput(null);
+    }
+    lock.lock();
+    try {
+      code = result;
+      failure = error;
+      ended = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Cancels the run: no more schedules are verified, and those in
+   * progress are completed. */
+  public void cancel() {
+    av.cancel("cancelled by the caller");
+    lock.lock();
+    try {
+      cancelled = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the run to end, and returns its exit code, as that of
+   * collect: 0 if all schedules pass, 2 if an error was detected, 3
+   * if not, but some schedules exceeded their budgets or the run was
+   * cancelled, 1 if the run ended with an exception.
+   */
+  public int await() throws InterruptedException {
+    lock.lock();
+    try {
+      if (thread == null)
+        throw new IllegalStateException("Verification not started");
+      while (!ended)
+        changed.await();
+      return code;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Has the run ended? */
+  public boolean isDone() {
+    lock.lock();
+    try {
+      return ended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Number of schedules the run verifies, once started */
+  public long total() {
+    return av.total();
+  }
+
+  /** Number of schedules completed so far */
+  public long completed() {
+    return av.ncompleted();
+  }
+}
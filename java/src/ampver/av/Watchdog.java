@@ -0,0 +1,126 @@
+package av;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Enforces the budget of wall-clock time on the runs of CIVL, so that
+ * one pathological schedule cannot stall the whole run.
+ *
+ * Each run is executed in a thread of its own, which the calling
+ * thread watches.  A run that takes longer than the time budget is
+ * stopped and its outcome is TIMEOUT.  A run that throws
+ * OutOfMemoryError is a MEMOUT.  The memory budget is not enforced
+ * here: the heap of this JVM is shared by the runs of all
+ * verification threads (and of all jobs of a daemon or runs of a
+ * campaign), so it cannot say which run uses the memory.  It is
+ * enforced with -childJVM, as the heap of the child JVM running each
+ * schedule (see AMPVer.child).
+ *
+ * A run is stopped with Thread.stop, after calling its onStop
+ * action (which kills the child JVM running CIVL, if any: see
+ * ChildJVM).  On a JVM where Thread.stop is no longer supported, the
+ * thread is abandoned: the outcome is reported all the same, but the
+ * thread runs to completion in the background.
+ */
+public class Watchdog {
+
+  /** Outcome of a run */
+  public static enum Outcome {
+    PASS, // CIVL found no error
+    FAIL, // CIVL found an error
+    TIMEOUT, // stopped for exceeding the time budget
+    MEMOUT // stopped for exceeding the memory budget
+  };
+
+  /** Time (milliseconds) between checks of the budget */
+  public final static long PERIOD = 100;
+
+  /** A run in progress */
+  private class Run {
+    final long start = System.nanoTime();
+    Thread thread;
+    Runnable onStop;
+    /** The outcome, set once by whichever decides it first */
+    final AtomicReference<Outcome> outcome = new AtomicReference<>();
+  }
+
+  /** Time budget (nanoseconds) of a run, or 0 for none */
+  private long timeout;
+
+  Watchdog(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /** Heap in use (bytes) after the last garbage collection */
+  static long liveHeap() {
+    long result = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP) continue;
+      MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null)
+        result += usage.getUsed();
+    }
+    return result;
+  }
+
+  @SuppressWarnings({"deprecation", "removal"})
+  private static void stop(Run run) {
+    if (run.onStop != null)
+      run.onStop.run();
+    run.thread.interrupt();
+    try {
+      run.thread.stop();
+    } catch (UnsupportedOperationException e) {
+      // abandoned: see above
+    }
+  }
+
+  /**
+   * Runs task, which runs CIVL and returns its outcome, within the
+   * budget.  scale multiplies the budget (the number of schedules
+   * verified by the run).  onStop, if not null, is called if the run
+   * is stopped.
+   */
+  Outcome run(Supplier<Outcome> task, int scale, Runnable onStop) {
+    if (timeout == 0) {
+      try {
+        return task.get();
+      } catch (OutOfMemoryError e) {
+        return Outcome.MEMOUT;
+      }
+    }
+    Run run = new Run();
+    run.onStop = onStop;
+    run.thread = new Thread(() -> {
+        try {
+          run.outcome.compareAndSet(null, task.get());
+        } catch (OutOfMemoryError e) {
+          run.outcome.compareAndSet(null, Outcome.MEMOUT);
+        } catch (ThreadDeath e) {
+          // stopped: the outcome is already set
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          run.outcome.compareAndSet(null, Outcome.FAIL);
+        }
+      });
+    run.thread.setDaemon(true);
+    run.thread.start();
+    try {
+      while (run.outcome.get() == null && run.thread.isAlive()) {
+        run.thread.join(PERIOD);
+        if (timeout > 0 && System.nanoTime() - run.start > timeout*scale &&
+            run.outcome.compareAndSet(null, Outcome.TIMEOUT))
+          stop(run);
+      }
+    } catch (InterruptedException e) {
+      if (run.outcome.compareAndSet(null, Outcome.TIMEOUT))
+        stop(run);
+    }
+    run.outcome.compareAndSet(null, Outcome.FAIL); // the thread died
+    return run.outcome.get();
+  }
+}